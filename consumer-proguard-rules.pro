@@ -0,0 +1,7 @@
+# Rules applied to apps that use this library.
+
+# Generated @DeviceParameters bindings are only found by name, as <DeviceClass>_Binding, so both the binding and
+# the device class it binds must keep their names.
+-keep class **_Binding { *; }
+-if class **_Binding
+-keepnames class <1>
@@ -0,0 +1,267 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Validates @DeviceParameters annotations and generates a BindingTable factory for each annotated device class,
+ * so characteristic UUIDs are resolved at build time instead of on every connection.
+ */
+@SupportedAnnotationTypes(DeviceParametersProcessor.DEVICE_PARAMETERS)
+public class DeviceParametersProcessor extends AbstractProcessor {
+    static final String DEVICE_PARAMETERS = "com.jameslandrum.bluetoothsmart2.annotations.DeviceParameters";
+    private static final String SMART_DEVICE = "com.jameslandrum.bluetoothsmart2.SmartDevice";
+    private static final String BINDING_SUFFIX = "_Binding";
+    private static final String BASE_UUID = "00000000-0000-1000-8000-00805f9b34fb";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(DEVICE_PARAMETERS);
+        if (annotation == null) return false;
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, null, "@DeviceParameters can only be applied to classes.");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            if (!isSmartDevice(type)) {
+                error(type, null, "%s must extend SmartDevice to use @DeviceParameters.", type.getSimpleName());
+                continue;
+            }
+            AnnotationMirror mirror = findMirror(type, DEVICE_PARAMETERS);
+            List<Binding> bindings = readBindings(type, mirror);
+            if (bindings != null) write(type, bindings);
+        }
+        return true;
+    }
+
+    private static final class Binding {
+        int id;
+        UUID uuid;
+        UUID service;   // null if the characteristic may be in any service
+    }
+
+    private boolean isSmartDevice(TypeElement type) {
+        TypeElement smartDevice = processingEnv.getElementUtils().getTypeElement(SMART_DEVICE);
+        if (smartDevice == null) return true;
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(smartDevice.asType());
+        return processingEnv.getTypeUtils().isSubtype(type.asType(), erased);
+    }
+
+    private List<Binding> readBindings(TypeElement type, AnnotationMirror parameters) {
+        ArrayList<Binding> bindings = new ArrayList<>();
+        HashSet<Integer> ids = new HashSet<>();
+        boolean valid = true;
+
+        for (AnnotationValue value : asList(valueOf(parameters, "characteristics"))) {
+            AnnotationMirror characteristic = (AnnotationMirror) value.getValue();
+            Binding binding = new Binding();
+            binding.id = (Integer) valueOf(characteristic, "id").getValue();
+            String uuid = refValue(characteristic, "uuid");
+            String service = refValue(characteristic, "service");
+
+            if (binding.id < 0) {
+                error(type, parameters, "Characteristic id %d must not be negative.", binding.id);
+                valid = false;
+            } else if (!ids.add(binding.id)) {
+                error(type, parameters, "Characteristic id %d is used more than once.", binding.id);
+                valid = false;
+            }
+
+            try {
+                if (service.length() > 0) {
+                    binding.service = parse(service, BASE_UUID);
+                    binding.uuid = parse(uuid, binding.service.toString());
+                } else {
+                    binding.uuid = parse(uuid, BASE_UUID);
+                }
+            } catch (IllegalArgumentException e) {
+                error(type, parameters, "Characteristic %d: %s", binding.id, e.getMessage());
+                valid = false;
+            }
+            bindings.add(binding);
+        }
+        return valid ? bindings : null;
+    }
+
+    /**
+     * Expands a UUID reference the same way Utils.uuidFromString() does at runtime.
+     */
+    private static UUID parse(String ref, String base) {
+        switch (ref.length()) {
+            case 4:
+                checkHex(ref);
+                return UUID.fromString(base.substring(0, 4) + ref + base.substring(8));
+            case 8:
+                checkHex(ref);
+                return UUID.fromString(ref + base.substring(8));
+            case 36:
+                for (int i = 0; i < 36; i++) {
+                    char c = ref.charAt(i);
+                    boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+                    if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                        throw new IllegalArgumentException("\"" + ref + "\" is not a valid UUID.");
+                    }
+                }
+                return UUID.fromString(ref);
+            default:
+                throw new IllegalArgumentException("\"" + ref + "\" must be a 16-bit, 32-bit, or 128-bit UUID.");
+        }
+    }
+
+    private static void checkHex(String ref) {
+        for (int i = 0; i < ref.length(); i++) {
+            if (Character.digit(ref.charAt(i), 16) < 0) {
+                throw new IllegalArgumentException("\"" + ref + "\" is not a valid hexadecimal UUID.");
+            }
+        }
+    }
+
+    private void write(TypeElement type, List<Binding> bindings) {
+        // Group by service, keeping declaration order; characteristics in any service go last.
+        LinkedHashMap<UUID, List<Binding>> groups = new LinkedHashMap<>();
+        ArrayList<Binding> anyService = new ArrayList<>();
+        for (Binding binding : bindings) {
+            if (binding.service == null) {
+                anyService.add(binding);
+                continue;
+            }
+            List<Binding> group = groups.get(binding.service);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(binding.service, group);
+            }
+            group.add(binding);
+        }
+
+        StringBuilder ids = new StringBuilder();
+        StringBuilder msb = new StringBuilder();
+        StringBuilder lsb = new StringBuilder();
+        StringBuilder serviceMsb = new StringBuilder();
+        StringBuilder serviceLsb = new StringBuilder();
+        StringBuilder groupStart = new StringBuilder();
+        int index = 0;
+        for (Map.Entry<UUID, List<Binding>> group : groups.entrySet()) {
+            append(serviceMsb, hex(group.getKey().getMostSignificantBits()));
+            append(serviceLsb, hex(group.getKey().getLeastSignificantBits()));
+            append(groupStart, String.valueOf(index));
+            for (Binding binding : group.getValue()) {
+                append(ids, String.valueOf(binding.id));
+                append(msb, hex(binding.uuid.getMostSignificantBits()));
+                append(lsb, hex(binding.uuid.getLeastSignificantBits()));
+                index++;
+            }
+        }
+        if (!anyService.isEmpty()) {
+            append(serviceMsb, "0L");
+            append(serviceLsb, "0L");
+            append(groupStart, String.valueOf(index));
+            for (Binding binding : anyService) {
+                append(ids, String.valueOf(binding.id));
+                append(msb, hex(binding.uuid.getMostSignificantBits()));
+                append(lsb, hex(binding.uuid.getLeastSignificantBits()));
+            }
+        }
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String className = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                + BINDING_SUFFIX;
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    packageName.isEmpty() ? className : packageName + "." + className, type);
+            try (Writer out = file.openWriter()) {
+                if (!packageName.isEmpty()) out.write("package " + packageName + ";\n\n");
+                out.write("import com.jameslandrum.bluetoothsmart2.BindingTable;\n\n");
+                out.write("/**\n * Generated by bluetoothsmart from the @DeviceParameters of "
+                        + type.getQualifiedName() + ". Do not edit.\n */\n");
+                out.write("public final class " + className + " implements BindingTable.Factory {\n");
+                out.write("    @Override\n");
+                out.write("    public BindingTable create() {\n");
+                out.write("        return new BindingTable(\n");
+                out.write("                new int[]{" + ids + "},\n");
+                out.write("                new long[]{" + msb + "},\n");
+                out.write("                new long[]{" + lsb + "},\n");
+                out.write("                new long[]{" + serviceMsb + "},\n");
+                out.write("                new long[]{" + serviceLsb + "},\n");
+                out.write("                new int[]{" + groupStart + "});\n");
+                out.write("    }\n");
+                out.write("}\n");
+            }
+        } catch (IOException e) {
+            error(type, null, "Could not write binding for %s: %s", type.getSimpleName(), e.getMessage());
+        }
+    }
+
+    private static void append(StringBuilder list, String value) {
+        if (list.length() > 0) list.append(", ");
+        list.append(value);
+    }
+
+    private static String hex(long value) {
+        return "0x" + Long.toHexString(value) + "L";
+    }
+
+    private String refValue(AnnotationMirror characteristic, String name) {
+        AnnotationMirror ref = (AnnotationMirror) valueOf(characteristic, name).getValue();
+        return (String) valueOf(ref, "value").getValue();
+    }
+
+    private AnnotationValue valueOf(AnnotationMirror mirror, String name) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+                processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) return entry.getValue();
+        }
+        throw new IllegalStateException("Annotation has no member " + name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<? extends AnnotationValue> asList(AnnotationValue value) {
+        return (List<? extends AnnotationValue>) value.getValue();
+    }
+
+    private static AnnotationMirror findMirror(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(annotation)) return mirror;
+        }
+        return null;
+    }
+
+    private void error(Element element, AnnotationMirror mirror, String message, Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(message, args), element, mirror);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+/**
+ * An immutable copy of a device's advertisement, as of a given version.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AdvertisementSnapshot {
+    private final byte[] mData;
+    private final long mVersion;
+    private final int mRssi;
+
+    AdvertisementSnapshot(byte[] data, long version, int rssi) {
+        mData = data;
+        mVersion = version;
+        mRssi = rssi;
+    }
+
+    /**
+     * @return The advertisement version this snapshot was taken at. Versions increase with every advertisement.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public int getLength() {
+        return mData.length;
+    }
+
+    public byte get(int index) {
+        return mData[index];
+    }
+
+    /**
+     * Copies the advertisement into a buffer.
+     * @return The length of the advertisement, which may exceed the number of bytes copied.
+     */
+    public int copyTo(byte[] out) {
+        System.arraycopy(mData, 0, out, 0, Math.min(out.length, mData.length));
+        return mData.length;
+    }
+
+    public byte[] toByteArray() {
+        return mData.clone();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import java.util.List;
+
+/**
+ * Scanner callback that receives the results of a batched scan as a single notification.
+ * Listeners that only implement ScannerCallback receive one DEVICE_DISCOVERED or DEVICE_UPDATED event
+ * per device in the batch instead.
+ */
+public interface BatchScannerCallback extends ScannerCallback {
+    /**
+     * Called once per batch of scan results. Each device appears at most once, with its latest advertisement.
+     * The lists are reused between batches and are only valid for the duration of the call.
+     * @param discovered Devices seen for the first time in this batch.
+     * @param updated Known devices that advertised in this batch.
+     */
+    void onDeviceBatch(List<SmartDevice> discovered, List<SmartDevice> updated);
+}
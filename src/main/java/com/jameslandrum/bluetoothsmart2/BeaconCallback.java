@@ -0,0 +1,31 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import com.jameslandrum.bluetoothsmart2.scanner.BeaconFrame;
+
+/**
+ * Receives every decoded iBeacon and Eddystone frame, from known and unknown devices alike.
+ */
+public interface BeaconCallback {
+    /**
+     * Called on the thread processing advertisements. The frame is reused and is only valid for the
+     * duration of the call.
+     * @param frame The decoded frame.
+     */
+    void onBeaconFrame(BeaconFrame frame);
+}
@@ -0,0 +1,214 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import com.jameslandrum.bluetoothsmart2.annotations.CharacteristicDef;
+import com.jameslandrum.bluetoothsmart2.annotations.DeviceParameters;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The characteristics a device class binds to, resolved once per class.
+ *
+ * Characteristics are grouped by service, so each service is looked up once per connection, and every id
+ * maps to a slot in the table. Tables are generated at compile time by the bluetoothsmart processor as a
+ * class named after the device class with a _Binding suffix; device classes without one are bound by reading
+ * their DeviceParameters annotation once.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BindingTable {
+    public static final String BINDING_SUFFIX = "_Binding";
+
+    private static final int MAX_DENSE_ID = 1024;
+    private static final ConcurrentHashMap<Class<?>, BindingTable> mTables = new ConcurrentHashMap<>();
+
+    private final int[] mIds;
+    private final UUID[] mUuids;
+    private final UUID[] mServices;         // Per group; null to search every service
+    private final int[] mGroupStart;        // Per group, plus the end of the last group
+    private final int[] mSlotById;          // Dense id to slot map, or null if ids are sparse
+
+    /**
+     * Generated bindings implement this and have a public no-argument constructor.
+     */
+    public interface Factory {
+        BindingTable create();
+    }
+
+    /**
+     * @param ids The characteristic ids, grouped by service.
+     * @param uuidMsb The characteristic UUIDs, most significant bits.
+     * @param uuidLsb The characteristic UUIDs, least significant bits.
+     * @param serviceMsb The service UUID of each group, most significant bits.
+     * @param serviceLsb The service UUID of each group, least significant bits. A group with a zero service
+     *                   UUID holds characteristics that may be in any service.
+     * @param groupStart The index of the first characteristic of each group.
+     */
+    public BindingTable(int[] ids, long[] uuidMsb, long[] uuidLsb, long[] serviceMsb, long[] serviceLsb,
+                        int[] groupStart) {
+        mIds = ids;
+        mUuids = new UUID[ids.length];
+        for (int i = 0; i < ids.length; i++) mUuids[i] = new UUID(uuidMsb[i], uuidLsb[i]);
+
+        mServices = new UUID[serviceMsb.length];
+        mGroupStart = Arrays.copyOf(groupStart, groupStart.length + 1);
+        mGroupStart[groupStart.length] = ids.length;
+        for (int g = 0; g < serviceMsb.length; g++) {
+            if (serviceMsb[g] != 0 || serviceLsb[g] != 0) mServices[g] = new UUID(serviceMsb[g], serviceLsb[g]);
+        }
+
+        int maxId = -1;
+        for (int id : ids) {
+            if (id < 0) throw new IllegalArgumentException("Characteristic ids must not be negative.");
+            maxId = Math.max(maxId, id);
+        }
+        if (maxId < MAX_DENSE_ID) {
+            mSlotById = new int[maxId + 1];
+            Arrays.fill(mSlotById, -1);
+            for (int i = 0; i < ids.length; i++) {
+                if (mSlotById[ids[i]] != -1) throw new IllegalArgumentException("Duplicate characteristic id " + ids[i]);
+                mSlotById[ids[i]] = i;
+            }
+        } else {
+            mSlotById = null;
+        }
+    }
+
+    /**
+     * Returns the binding table for a device class, creating it on first use.
+     * @throws RuntimeException If the class has neither a generated binding nor a DeviceParameters annotation.
+     */
+    public static BindingTable forClass(Class<? extends SmartDevice> klass) {
+        BindingTable table = mTables.get(klass);
+        if (table == null) {
+            table = load(klass);
+            BindingTable existing = mTables.putIfAbsent(klass, table);
+            if (existing != null) table = existing;
+        }
+        return table;
+    }
+
+    private static BindingTable load(Class<? extends SmartDevice> klass) {
+        try {
+            Class<?> binding = Class.forName(klass.getName() + BINDING_SUFFIX, true, klass.getClassLoader());
+            return ((Factory) binding.newInstance()).create();
+        } catch (ClassNotFoundException e) {
+            return reflect(klass);
+        } catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+            Logging.error("Generated binding for %s is unusable, falling back to reflection: %s", klass.getSimpleName(), e);
+            return reflect(klass);
+        }
+    }
+
+    private static BindingTable reflect(Class<? extends SmartDevice> klass) {
+        DeviceParameters parameters = klass.getAnnotation(DeviceParameters.class);
+        if (parameters == null) throw new RuntimeException("Device must have DeviceParameters annotation.");
+
+        LinkedHashMap<UUID, List<CharacteristicDef>> groups = new LinkedHashMap<>();
+        ArrayList<CharacteristicDef> anyService = new ArrayList<>();
+        for (CharacteristicDef characteristic : parameters.characteristics()) {
+            if (characteristic.service().value().length() == 0) {
+                anyService.add(characteristic);
+                continue;
+            }
+            UUID service = Utils.uuidFromRef(characteristic.service());
+            List<CharacteristicDef> group = groups.get(service);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(service, group);
+            }
+            group.add(characteristic);
+        }
+
+        int count = parameters.characteristics().length;
+        int groupCount = groups.size() + (anyService.isEmpty() ? 0 : 1);
+        int[] ids = new int[count];
+        long[] uuidMsb = new long[count];
+        long[] uuidLsb = new long[count];
+        long[] serviceMsb = new long[groupCount];
+        long[] serviceLsb = new long[groupCount];
+        int[] groupStart = new int[groupCount];
+
+        int i = 0;
+        int g = 0;
+        for (Map.Entry<UUID, List<CharacteristicDef>> group : groups.entrySet()) {
+            serviceMsb[g] = group.getKey().getMostSignificantBits();
+            serviceLsb[g] = group.getKey().getLeastSignificantBits();
+            groupStart[g++] = i;
+            for (CharacteristicDef characteristic : group.getValue()) {
+                UUID uuid = Utils.uuidFromString(characteristic.uuid().value(), group.getKey());
+                ids[i] = characteristic.id();
+                uuidMsb[i] = uuid.getMostSignificantBits();
+                uuidLsb[i++] = uuid.getLeastSignificantBits();
+            }
+        }
+        if (!anyService.isEmpty()) {
+            groupStart[g] = i;
+            for (CharacteristicDef characteristic : anyService) {
+                UUID uuid = Utils.uuidFromRef(characteristic.uuid());
+                ids[i] = characteristic.id();
+                uuidMsb[i] = uuid.getMostSignificantBits();
+                uuidLsb[i++] = uuid.getLeastSignificantBits();
+            }
+        }
+
+        return new BindingTable(ids, uuidMsb, uuidLsb, serviceMsb, serviceLsb, groupStart);
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    public int getId(int slot) {
+        return mIds[slot];
+    }
+
+    public UUID getUuid(int slot) {
+        return mUuids[slot];
+    }
+
+    public int getGroupCount() {
+        return mServices.length;
+    }
+
+    /**
+     * @return The service of a group, or null if its characteristics may be in any service.
+     */
+    public UUID getGroupService(int group) {
+        return mServices[group];
+    }
+
+    public int getGroupStart(int group) {
+        return mGroupStart[group];
+    }
+
+    public int getGroupEnd(int group) {
+        return mGroupStart[group + 1];
+    }
+
+    /**
+     * @return The slot of the characteristic with the given id, or -1 if the device has no such characteristic.
+     */
+    public int slotOf(int id) {
+        if (mSlotById != null) return id >= 0 && id < mSlotById.length ? mSlotById[id] : -1;
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == id) return i;
+        }
+        return -1;
+    }
+}
@@ -17,15 +17,15 @@
 package com.jameslandrum.bluetoothsmart2;
 
 import android.bluetooth.BluetoothGattCharacteristic;
-import com.annimon.stream.Stream;
 import com.jameslandrum.bluetoothsmart2.actionqueue.NotificationCallback;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 public class Characteristic {
-    private BluetoothGattCharacteristic mCharacteristic;
+    private volatile BluetoothGattCharacteristic mCharacteristic;
     private int mIdentifier;
-    private final ConcurrentLinkedQueue<NotificationCallback> mChangeCallbacks = new ConcurrentLinkedQueue<>();
+    private static final ListenerList.Delivery<NotificationCallback, Void> CHANGE =
+            (callback, event, unused) -> callback.onCharacteristicChange();
+
+    private final ListenerList<NotificationCallback> mChangeCallbacks = new ListenerList<>();
 
     Characteristic(BluetoothGattCharacteristic nativeChar, int identifier) {
         mCharacteristic = nativeChar;
@@ -36,6 +36,11 @@ public class Characteristic {
         return mCharacteristic;
     }
 
+    // Points this characteristic at the stack's object once services are discovered, keeping its callbacks.
+    void rebind(BluetoothGattCharacteristic nativeChar) {
+        mCharacteristic = nativeChar;
+    }
+
     public byte[] getValue() {
         if (mCharacteristic != null) return mCharacteristic.getValue();
         return null;
@@ -46,7 +51,7 @@ public class Characteristic {
     }
 
     void addCallback(NotificationCallback callback) {
-        if (!mChangeCallbacks.contains(callback)) mChangeCallbacks.add(callback);
+        mChangeCallbacks.add(callback);
     }
 
     void removeCallback(NotificationCallback callback) {
@@ -54,7 +59,7 @@ public class Characteristic {
     }
 
     void notifyUpdate() {
-        Stream.of(mChangeCallbacks).forEach(NotificationCallback::onCharacteristicChange);
+        mChangeCallbacks.dispatch(CHANGE, 0, null);
     }
 
     void clearAllCallbacks() {
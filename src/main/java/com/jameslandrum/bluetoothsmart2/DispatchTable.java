@@ -0,0 +1,93 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * Immutable lookup of a connected device's bound characteristics, built once services are discovered.
+ *
+ * Characteristics are held in the slots of the device class's binding table, so finding one by id is an
+ * array access. Native characteristics are found through an open addressed identity table, falling back to
+ * the instance id and UUID for stacks that hand out copies. The table is never modified once published.
+ */
+final class DispatchTable {
+    static final DispatchTable EMPTY = new DispatchTable(null, new Characteristic[0]);
+
+    private final BindingTable mBinding;
+    private final Characteristic[] mBySlot;     // Null where the characteristic was not found
+    private final BluetoothGattCharacteristic[] mKeys;
+    private final Characteristic[] mValues;
+    private final int mMask;
+
+    DispatchTable(BindingTable binding, Characteristic[] bySlot) {
+        mBinding = binding;
+        mBySlot = bySlot;
+
+        int size = 2;
+        while (size < bySlot.length * 2) size <<= 1;
+        mKeys = new BluetoothGattCharacteristic[size];
+        mValues = new Characteristic[size];
+        mMask = size - 1;
+        for (Characteristic characteristic : bySlot) {
+            if (characteristic == null) continue;
+            BluetoothGattCharacteristic key = characteristic.getNativeCharacteristic();
+            int slot = System.identityHashCode(key) & mMask;
+            while (mKeys[slot] != null) slot = (slot + 1) & mMask;
+            mKeys[slot] = key;
+            mValues[slot] = characteristic;
+        }
+    }
+
+    Characteristic get(int id) {
+        if (mBinding == null) return null;
+        int slot = mBinding.slotOf(id);
+        return slot < 0 ? null : mBySlot[slot];
+    }
+
+    /**
+     * @return The characteristic bound to a slot of the binding table, or null.
+     */
+    Characteristic getSlot(int slot) {
+        return slot < mBySlot.length ? mBySlot[slot] : null;
+    }
+
+    Characteristic get(BluetoothGattCharacteristic nativeCharacteristic) {
+        int slot = System.identityHashCode(nativeCharacteristic) & mMask;
+        BluetoothGattCharacteristic key;
+        while ((key = mKeys[slot]) != null) {
+            if (key == nativeCharacteristic) return mValues[slot];
+            slot = (slot + 1) & mMask;
+        }
+
+        for (Characteristic characteristic : mBySlot) {
+            if (characteristic == null) continue;
+            BluetoothGattCharacteristic candidate = characteristic.getNativeCharacteristic();
+            if (candidate.getInstanceId() == nativeCharacteristic.getInstanceId()
+                    && candidate.getUuid().equals(nativeCharacteristic.getUuid())) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    void clearAllCallbacks() {
+        for (Characteristic characteristic : mBySlot) {
+            if (characteristic != null) characteristic.clearAllCallbacks();
+        }
+    }
+}
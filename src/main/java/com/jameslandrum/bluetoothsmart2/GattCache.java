@@ -0,0 +1,208 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import android.bluetooth.BluetoothGattService;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remembers the service layout of each device by address, so reconnecting devices can bind their characteristics
+ * as soon as the connection is up, before service discovery finishes.
+ *
+ * Layouts are read from the store on a background thread when a connection starts. Cached layouts are checked
+ * against every discovery on that thread and replaced when the device's layout has changed. Devices that can tell
+ * a firmware or database hash apart before connecting can return it from SmartDevice.getGattCacheKey(), and
+ * layouts stored under a different key are ignored.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class GattCache {
+    private static final Object MISSING = new Object();
+
+    private static volatile Store mStore;
+    private static final ConcurrentHashMap<Long, Object> mLayouts = new ConcurrentHashMap<>();
+    private static final ExecutorService mWorker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "BluetoothSmart-GattCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private GattCache() {
+    }
+
+    /**
+     * Persists layouts across processes. Stores are only called from the cache's background thread.
+     */
+    public interface Store {
+        /**
+         * @return The stored layout, or null if there is none.
+         */
+        byte[] read(long address) throws IOException;
+        void write(long address, byte[] layout) throws IOException;
+        void delete(long address) throws IOException;
+    }
+
+    /**
+     * Stores each layout in its own file, named by the device address, within a directory.
+     */
+    public static final class FileStore implements Store {
+        private final File mDirectory;
+
+        public FileStore(File directory) {
+            mDirectory = directory;
+        }
+
+        @Override
+        public byte[] read(long address) throws IOException {
+            File file = fileFor(address);
+            if (!file.exists()) return null;
+            byte[] data = new byte[(int) file.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(data);
+            }
+            return data;
+        }
+
+        @Override
+        public void write(long address, byte[] layout) throws IOException {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mDirectory);
+            }
+            File temp = new File(mDirectory, Long.toHexString(address) + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(layout);
+            }
+            if (!temp.renameTo(fileFor(address))) {
+                temp.delete();
+                throw new IOException("Could not replace layout for " + Utils.macToString(address));
+            }
+        }
+
+        @Override
+        public void delete(long address) throws IOException {
+            File file = fileFor(address);
+            if (file.exists() && !file.delete()) throw new IOException("Could not delete " + file);
+        }
+
+        private File fileFor(long address) {
+            return new File(mDirectory, Long.toHexString(address) + ".gatt");
+        }
+    }
+
+    /**
+     * Sets where layouts are persisted. Layouts are kept in memory only until a store is set.
+     */
+    public static void setStore(Store store) {
+        mStore = store;
+        mLayouts.clear();
+    }
+
+    /**
+     * Forgets the layout of a device, for instance after updating its firmware.
+     */
+    public static void forget(long address) {
+        mLayouts.remove(address);
+        Store store = mStore;
+        if (store == null) return;
+        mWorker.execute(() -> {
+            try {
+                store.delete(address);
+            } catch (IOException e) {
+                Logging.error("Could not delete GATT layout: %s", e);
+            }
+        });
+    }
+
+    /**
+     * Starts reading the layout of an address from the store in the background, if it is not in memory yet.
+     */
+    static void prefetch(long address) {
+        if (mStore == null || mLayouts.containsKey(address)) return;
+        mWorker.execute(() -> loaded(address));
+    }
+
+    /**
+     * @return The layout of the address under the given key if it is already in memory, or null. Never reads the
+     *         store, so it is safe to call from Bluetooth callbacks.
+     */
+    static GattLayout peek(long address, long key) {
+        Object cached = mLayouts.get(address);
+        if (!(cached instanceof GattLayout)) return null;
+        GattLayout layout = (GattLayout) cached;
+        return layout.getKey() == key ? layout : null;
+    }
+
+    /**
+     * @return The layout last discovered for the address under the given key, or null. Reads the store on the
+     *         calling thread if the layout is not in memory.
+     */
+    static GattLayout get(long address, long key) {
+        Object cached = loaded(address);
+        if (cached == MISSING) return null;
+        GattLayout layout = (GattLayout) cached;
+        return layout.getKey() == key ? layout : null;
+    }
+
+    private static Object loaded(long address) {
+        Object cached = mLayouts.get(address);
+        if (cached == null) {
+            cached = load(address);
+            Object existing = mLayouts.putIfAbsent(address, cached);
+            if (existing != null) cached = existing;
+        }
+        return cached;
+    }
+
+    /**
+     * Checks discovered services against the cached layout in the background, storing them if they differ.
+     */
+    static void update(long address, long key, List<BluetoothGattService> services) {
+        List<BluetoothGattService> discovered = new ArrayList<>(services);
+        mWorker.execute(() -> {
+            Object cached = mLayouts.get(address);
+            if (cached instanceof GattLayout && ((GattLayout) cached).getKey() == key
+                    && ((GattLayout) cached).matches(discovered)) return;
+
+            GattLayout layout = GattLayout.of(discovered, key);
+            mLayouts.put(address, layout);
+            Store store = mStore;
+            if (store == null) return;
+            try {
+                store.write(address, layout.toBytes());
+            } catch (IOException e) {
+                Logging.error("Could not store GATT layout: %s", e);
+            }
+        });
+    }
+
+    private static Object load(long address) {
+        Store store = mStore;
+        if (store == null) return MISSING;
+        try {
+            byte[] data = store.read(address);
+            return data == null ? MISSING : GattLayout.fromBytes(data);
+        } catch (IOException e) {
+            Logging.error("Could not read GATT layout: %s", e);
+            return MISSING;
+        }
+    }
+}
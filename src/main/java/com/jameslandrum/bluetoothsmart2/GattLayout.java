@@ -0,0 +1,219 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The service and characteristic layout of a device, in the order its stack reported them.
+ * Characteristics are stored flat, with each service holding the range from its start to the next service's start.
+ */
+final class GattLayout {
+    private static final int VERSION = 1;
+
+    private final long mKey;
+    private final long[] mServiceMsb;
+    private final long[] mServiceLsb;
+    private final int[] mServiceStart;      // One longer than the service count
+    private final long[] mCharacteristicMsb;
+    private final long[] mCharacteristicLsb;
+    private final int[] mProperties;
+
+    private GattLayout(long key, int services, int characteristics) {
+        mKey = key;
+        mServiceMsb = new long[services];
+        mServiceLsb = new long[services];
+        mServiceStart = new int[services + 1];
+        mCharacteristicMsb = new long[characteristics];
+        mCharacteristicLsb = new long[characteristics];
+        mProperties = new int[characteristics];
+    }
+
+    static GattLayout of(List<BluetoothGattService> services, long key) {
+        UUID[] serviceUuids = new UUID[services.size()];
+        int[] counts = new int[services.size()];
+        int total = 0;
+        for (int s = 0; s < services.size(); s++) {
+            serviceUuids[s] = services.get(s).getUuid();
+            counts[s] = services.get(s).getCharacteristics().size();
+            total += counts[s];
+        }
+
+        UUID[] characteristics = new UUID[total];
+        int[] properties = new int[total];
+        int index = 0;
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                characteristics[index] = characteristic.getUuid();
+                properties[index] = characteristic.getProperties();
+                index++;
+            }
+        }
+        return of(key, serviceUuids, counts, characteristics, properties);
+    }
+
+    /**
+     * @param services The service UUIDs, in discovery order.
+     * @param counts The number of characteristics of each service.
+     * @param characteristics The characteristic UUIDs of every service, one service after another.
+     * @param properties The properties of each characteristic.
+     */
+    static GattLayout of(long key, UUID[] services, int[] counts, UUID[] characteristics, int[] properties) {
+        GattLayout layout = new GattLayout(key, services.length, characteristics.length);
+        int index = 0;
+        for (int s = 0; s < services.length; s++) {
+            layout.mServiceMsb[s] = services[s].getMostSignificantBits();
+            layout.mServiceLsb[s] = services[s].getLeastSignificantBits();
+            layout.mServiceStart[s] = index;
+            index += counts[s];
+        }
+        if (index != characteristics.length) throw new IllegalArgumentException("Counts do not match characteristics");
+        layout.mServiceStart[services.length] = index;
+        for (int c = 0; c < characteristics.length; c++) {
+            layout.mCharacteristicMsb[c] = characteristics[c].getMostSignificantBits();
+            layout.mCharacteristicLsb[c] = characteristics[c].getLeastSignificantBits();
+            layout.mProperties[c] = properties[c];
+        }
+        return layout;
+    }
+
+    long getKey() {
+        return mKey;
+    }
+
+    /**
+     * Finds a characteristic by UUID.
+     * @param service The service to search, or null to search all services.
+     * @return The position of the characteristic, packed as the service index in the upper 16 bits and
+     * the index within the service in the lower 16 bits, or -1 if the layout does not have it.
+     */
+    int find(UUID service, UUID characteristic) {
+        long msb = characteristic.getMostSignificantBits();
+        long lsb = characteristic.getLeastSignificantBits();
+        for (int s = 0; s < mServiceMsb.length; s++) {
+            if (service != null && (mServiceMsb[s] != service.getMostSignificantBits()
+                    || mServiceLsb[s] != service.getLeastSignificantBits())) continue;
+            for (int c = mServiceStart[s]; c < mServiceStart[s + 1]; c++) {
+                if (mCharacteristicMsb[c] == msb && mCharacteristicLsb[c] == lsb) {
+                    return s << 16 | (c - mServiceStart[s]);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Recreates the services from the layout, for binding before the device's services are discovered.
+     * The characteristics carry their UUIDs and properties, but can not be read or written.
+     */
+    List<BluetoothGattService> toServices() {
+        ArrayList<BluetoothGattService> services = new ArrayList<>(mServiceMsb.length);
+        for (int s = 0; s < mServiceMsb.length; s++) {
+            BluetoothGattService service = new BluetoothGattService(new UUID(mServiceMsb[s], mServiceLsb[s]),
+                    BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            for (int c = mServiceStart[s]; c < mServiceStart[s + 1]; c++) {
+                service.addCharacteristic(new BluetoothGattCharacteristic(
+                        new UUID(mCharacteristicMsb[c], mCharacteristicLsb[c]), mProperties[c], 0));
+            }
+            services.add(service);
+        }
+        return services;
+    }
+
+    /**
+     * @return true if the discovered services have the same layout.
+     */
+    boolean matches(List<BluetoothGattService> services) {
+        if (services.size() != mServiceMsb.length) return false;
+        for (int s = 0; s < services.size(); s++) {
+            BluetoothGattService service = services.get(s);
+            UUID uuid = service.getUuid();
+            if (uuid.getMostSignificantBits() != mServiceMsb[s] || uuid.getLeastSignificantBits() != mServiceLsb[s]) {
+                return false;
+            }
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            if (characteristics.size() != mServiceStart[s + 1] - mServiceStart[s]) return false;
+            for (int i = 0, c = mServiceStart[s]; i < characteristics.size(); i++, c++) {
+                BluetoothGattCharacteristic characteristic = characteristics.get(i);
+                uuid = characteristic.getUuid();
+                if (uuid.getMostSignificantBits() != mCharacteristicMsb[c]
+                        || uuid.getLeastSignificantBits() != mCharacteristicLsb[c]
+                        || characteristic.getProperties() != mProperties[c]) return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + mServiceMsb.length * 20 + mProperties.length * 20);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeLong(mKey);
+            out.writeInt(mServiceMsb.length);
+            out.writeInt(mProperties.length);
+            for (int s = 0; s < mServiceMsb.length; s++) {
+                out.writeLong(mServiceMsb[s]);
+                out.writeLong(mServiceLsb[s]);
+                out.writeInt(mServiceStart[s + 1] - mServiceStart[s]);
+            }
+            for (int c = 0; c < mProperties.length; c++) {
+                out.writeLong(mCharacteristicMsb[c]);
+                out.writeLong(mCharacteristicLsb[c]);
+                out.writeInt(mProperties[c]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static GattLayout fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != VERSION) throw new IOException("Unsupported layout version");
+        long key = in.readLong();
+        int services = in.readInt();
+        int characteristics = in.readInt();
+        if (services < 0 || characteristics < 0 || services + characteristics > data.length) {
+            throw new IOException("Corrupt layout");
+        }
+
+        GattLayout layout = new GattLayout(key, services, characteristics);
+        int index = 0;
+        for (int s = 0; s < services; s++) {
+            layout.mServiceMsb[s] = in.readLong();
+            layout.mServiceLsb[s] = in.readLong();
+            layout.mServiceStart[s] = index;
+            int count = in.readInt();
+            if (count < 0 || count > characteristics - index) throw new IOException("Corrupt layout");
+            index += count;
+        }
+        if (index != characteristics) throw new IOException("Corrupt layout");
+        layout.mServiceStart[services] = index;
+        for (int c = 0; c < characteristics; c++) {
+            layout.mCharacteristicMsb[c] = in.readLong();
+            layout.mCharacteristicLsb[c] = in.readLong();
+            layout.mProperties[c] = in.readInt();
+        }
+        return layout;
+    }
+}
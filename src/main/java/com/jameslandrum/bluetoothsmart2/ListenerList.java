@@ -0,0 +1,129 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Copy-on-write list of listeners. Adding and removing replaces the array, so events are delivered by looping
+ * over whichever array was current when dispatch began, without locking or allocating.
+ *
+ * A listener may be added with an executor, in which case its events are handed to the executor instead of
+ * being delivered on the dispatching thread. Event arguments must then stay valid after dispatch returns.
+ * @param <T> The listener type.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ListenerList<T> {
+    /**
+     * Delivers one event to one listener. Implementations should not capture state, so a single instance
+     * can be kept in a constant.
+     */
+    public interface Delivery<T, A> {
+        void deliver(T listener, int event, A argument);
+    }
+
+    private static final class Entry {
+        final Object mListener;
+        final Executor mExecutor;
+
+        Entry(Object listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    private static final Entry[] NONE = new Entry[0];
+
+    private volatile Entry[] mEntries = NONE;
+    private volatile boolean mHasExecutors;
+
+    public void add(T listener) {
+        add(listener, null);
+    }
+
+    /**
+     * Adds a listener, unless it has already been added.
+     * @param executor The executor to deliver events on, or null to deliver them on the dispatching thread.
+     */
+    public synchronized void add(T listener, Executor executor) {
+        Entry[] entries = mEntries;
+        for (Entry entry : entries) {
+            if (entry.mListener == listener) return;
+        }
+        Entry[] next = Arrays.copyOf(entries, entries.length + 1);
+        next[entries.length] = new Entry(listener, executor);
+        publish(next);
+    }
+
+    /**
+     * @return true if the listener was removed.
+     */
+    public synchronized boolean remove(T listener) {
+        Entry[] entries = mEntries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].mListener != listener) continue;
+            Entry[] next = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, next, 0, i);
+            System.arraycopy(entries, i + 1, next, i, next.length - i);
+            publish(next);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        publish(NONE);
+    }
+
+    public int size() {
+        return mEntries.length;
+    }
+
+    public boolean isEmpty() {
+        return mEntries.length == 0;
+    }
+
+    /**
+     * @return true if any listener has its own executor.
+     */
+    public boolean hasExecutors() {
+        return mHasExecutors;
+    }
+
+    /**
+     * Delivers an event to every listener.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> void dispatch(Delivery<? super T, A> delivery, int event, A argument) {
+        for (Entry entry : mEntries) {
+            T listener = (T) entry.mListener;
+            if (entry.mExecutor == null) {
+                delivery.deliver(listener, event, argument);
+            } else {
+                entry.mExecutor.execute(() -> delivery.deliver(listener, event, argument));
+            }
+        }
+    }
+
+    private void publish(Entry[] entries) {
+        boolean hasExecutors = false;
+        for (Entry entry : entries) hasExecutors |= entry.mExecutor != null;
+        mHasExecutors = hasExecutors;
+        mEntries = entries;
+    }
+}
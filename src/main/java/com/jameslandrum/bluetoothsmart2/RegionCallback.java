@@ -0,0 +1,34 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+import com.jameslandrum.bluetoothsmart2.scanner.BeaconRegion;
+
+/**
+ * Receives beacon region transitions.
+ */
+public interface RegionCallback {
+    /**
+     * Called on the thread processing advertisements when a beacon in an unoccupied region is seen.
+     */
+    void onRegionEntered(BeaconRegion region);
+
+    /**
+     * Called on the main thread once no beacon in an occupied region has been seen for its exit timeout.
+     */
+    void onRegionExited(BeaconRegion region);
+}
@@ -0,0 +1,207 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2;
+
+/**
+ * Smoothed view of a device's received signal strength.
+ *
+ * Samples are kept in a fixed ring, so each advertisement updates the exponential moving average, a one
+ * dimensional Kalman estimate, the variance and the trend in constant time without allocating. The variance and
+ * trend come from running sums over the ring. Signal strengths are whole dBm and times are whole milliseconds from
+ * a base time, so the sums are kept exactly in longs and no rounding error builds up however long the device is
+ * tracked; the base moves up to the oldest sample when the times grow large. Distance is estimated from the
+ * Kalman estimate with a log-distance path loss model.
+ *
+ * Samples are added by the scanner; the estimates may be read from any thread.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class SignalModel {
+    public static final int WINDOW = 16;
+    public static final int DEFAULT_REFERENCE_POWER = -59;
+    public static final double DEFAULT_PATH_LOSS_EXPONENT = 2.0;
+
+    private static final double EMA_ALPHA = 0.3;
+    private static final double MEASUREMENT_NOISE = 9.0;       // dB^2, about 3 dB standard deviation
+    private static final double PROCESS_NOISE = 0.5;           // dB^2 per second
+    private static final int TX_POWER_TO_ONE_METER = 41;       // Typical loss between 0 and 1 meter, in dB
+    // Longest span of the ring, in milliseconds (about 4.6 hours). Keeps the products of the time sums in a long.
+    private static final long MAX_SPAN = 1L << 24;
+
+    // Ring of recent samples and their sums, written only by update(). Times in the sums are relative to mBase.
+    private final int[] mRssi = new int[WINDOW];
+    private final long[] mTime = new long[WINDOW];
+    private int mHead;
+    private int mSamples;
+    private long mBase;
+    private long mSumR, mSumRR, mSumT, mSumTT, mSumTR;
+    private boolean mStarted;
+    private long mLastUpdate;
+    private double mKalmanError;
+
+    private volatile int mReferencePower = DEFAULT_REFERENCE_POWER;
+    private volatile boolean mReferenceFixed;
+    private volatile double mPathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+
+    private volatile int mLatest;
+    private volatile double mEma;
+    private volatile double mKalman;
+    private volatile double mVariance;
+    private volatile double mTrend;
+
+    /**
+     * Adds a sample.
+     * @param rssi The received signal strength, in dBm.
+     * @param now A monotonic timestamp in milliseconds.
+     */
+    public void update(int rssi, long now) {
+        if (!mStarted) {
+            mStarted = true;
+            mEma = rssi;
+            mKalman = rssi;
+            mKalmanError = MEASUREMENT_NOISE;
+        } else {
+            mEma += EMA_ALPHA * (rssi - mEma);
+
+            double elapsed = Math.max(0, now - mLastUpdate) / 1000.0;
+            double error = mKalmanError + PROCESS_NOISE * Math.max(elapsed, 0.01);
+            double gain = error / (error + MEASUREMENT_NOISE);
+            mKalman += gain * (rssi - mKalman);
+            mKalmanError = (1 - gain) * error;
+        }
+        mLastUpdate = now;
+        mLatest = rssi;
+
+        // Samples too old to share the time base are no longer recent; neither is anything when time went back.
+        while (mSamples > 0 && (now - mTime[mHead] > MAX_SPAN || now < mTime[mHead])) removeOldest();
+        if (mSamples == WINDOW) removeOldest();
+        if (mSamples == 0) {
+            mBase = now;
+        } else if (now - mBase > MAX_SPAN) {
+            rebase();
+        }
+        int slot = (mHead + mSamples) % WINDOW;
+        mRssi[slot] = rssi;
+        mTime[slot] = now;
+        mSamples++;
+        add(rssi, now - mBase, 1);
+
+        long n = mSamples;
+        mVariance = n > 1 ? (n * mSumRR - mSumR * mSumR) / (double) (n * (n - 1)) : 0;
+        long spread = n * mSumTT - mSumT * mSumT;
+        mTrend = n > 1 && spread > 0 ? 1000.0 * (n * mSumTR - mSumT * mSumR) / spread : 0;
+    }
+
+    private void add(long r, long t, int sign) {
+        mSumR += sign * r;
+        mSumRR += sign * r * r;
+        mSumT += sign * t;
+        mSumTT += sign * t * t;
+        mSumTR += sign * t * r;
+    }
+
+    private void removeOldest() {
+        add(mRssi[mHead], mTime[mHead] - mBase, -1);
+        mHead = (mHead + 1) % WINDOW;
+        mSamples--;
+    }
+
+    // Moves the time base to the oldest sample and recomputes the sums, which only happens once per MAX_SPAN.
+    private void rebase() {
+        mBase = mTime[mHead];
+        mSumR = mSumRR = mSumT = mSumTT = mSumTR = 0;
+        for (int i = 0; i < mSamples; i++) {
+            int slot = (mHead + i) % WINDOW;
+            add(mRssi[slot], mTime[slot] - mBase, 1);
+        }
+    }
+
+    /**
+     * Sets the reference power from an advertised transmit power level, unless a reference power was set
+     * explicitly.
+     * @param txPower The advertised transmit power level, in dBm.
+     */
+    public void setAdvertisedTxPower(int txPower) {
+        if (!mReferenceFixed) mReferencePower = txPower - TX_POWER_TO_ONE_METER;
+    }
+
+    /**
+     * Sets the expected signal strength at one meter, such as an iBeacon's measured power.
+     * @param rssiAtOneMeter The expected signal strength at one meter, in dBm.
+     */
+    public void setReferencePower(int rssiAtOneMeter) {
+        mReferencePower = rssiAtOneMeter;
+        mReferenceFixed = true;
+    }
+
+    public int getReferencePower() {
+        return mReferencePower;
+    }
+
+    /**
+     * Sets the path loss exponent; 2 for free space, higher indoors.
+     */
+    public void setPathLossExponent(double exponent) {
+        mPathLossExponent = exponent;
+    }
+
+    /**
+     * @return The number of recent samples the variance and trend are taken over, at most WINDOW.
+     */
+    public int getSampleCount() {
+        return mSamples;
+    }
+
+    public int getLatest() {
+        return mLatest;
+    }
+
+    /**
+     * @return The exponential moving average of the signal strength, in dBm.
+     */
+    public double getAverage() {
+        return mEma;
+    }
+
+    /**
+     * @return The Kalman filtered signal strength, in dBm.
+     */
+    public double getEstimate() {
+        return mKalman;
+    }
+
+    /**
+     * @return The variance of the signal strength over the recent samples, in dB^2.
+     */
+    public double getVariance() {
+        return mVariance;
+    }
+
+    /**
+     * @return The change in signal strength over the recent samples, in dB per second. Positive values
+     * indicate the device is getting closer.
+     */
+    public double getTrend() {
+        return mTrend;
+    }
+
+    /**
+     * @return The estimated distance to the device, in meters.
+     */
+    public double getDistance() {
+        return Math.pow(10, (mReferencePower - mKalman) / (10 * mPathLossExponent));
+    }
+}
@@ -16,17 +16,22 @@
 
 package com.jameslandrum.bluetoothsmart2;
 
+import android.annotation.TargetApi;
 import android.bluetooth.*;
 import android.content.Context;
-import com.annimon.stream.Stream;
+import android.os.Build;
+import android.os.SystemClock;
 import com.jameslandrum.bluetoothsmart2.actionqueue.ActionRunner;
 import com.jameslandrum.bluetoothsmart2.actionqueue.ExecutionQueue;
+import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
 import com.jameslandrum.bluetoothsmart2.actionqueue.Intention;
 import com.jameslandrum.bluetoothsmart2.actionqueue.NotificationCallback;
-import com.jameslandrum.bluetoothsmart2.annotations.DeviceParameters;
+import com.jameslandrum.bluetoothsmart2.scanner.BeaconFrame;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 @SuppressWarnings("unused")
 public abstract class SmartDevice extends BluetoothGattCallback {
@@ -37,6 +42,7 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     public static final int EVENT_NEW_BEACON = 0x05;
     public static final int EVENT_NEW_ADVERTISEMENT = 0x06;
     public static final int EVENT_SECURITY_FAILURE = 0x07;
+    public static final int EVENT_CHARACTERISTICS_BOUND = 0x08;
 
     public static final int EVENT_CHARACTERISTIC_WRITTEN = 0x10;
     public static final int EVENT_CHARACTERISTIC_WRITE_FAILURE = 0x9010;
@@ -44,28 +50,67 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     public static final int EVENT_CHARACTERISTIC_READ_FAILURE = 0x9011;
     public static final int EVENT_DESCRIPTOR_WRITTEN = 0x10;
     public static final int EVENT_DESCRIPTOR_WRITE_FAILURE = 0x9010;
+    public static final int EVENT_MTU_CHANGED = 0x20;
+    public static final int EVENT_MTU_CHANGE_FAILURE = 0x9020;
+    public static final int EVENT_PHY_UPDATED = 0x21;
+    public static final int EVENT_PHY_UPDATE_FAILURE = 0x9021;
+
+    public static final int DEFAULT_MTU = 23;
+
+    private static final ListenerList.Delivery<DeviceUpdateListener, Void> UPDATE_EVENT =
+            (listener, event, unused) -> listener.onDeviceUpdateEvent(event);
 
     private BluetoothDevice mDevice;
+    private long mPackedAddress = -1;
+    private Identifier mIdentifier;
     private ActionRunner mActionRunner = new ActionRunner(this);
-    private ConcurrentLinkedQueue<Characteristic> mCharacteristics = new ConcurrentLinkedQueue<>();
-    private ConcurrentLinkedQueue<DeviceUpdateListener> mListeners = new ConcurrentLinkedQueue<>();
+    private volatile DispatchTable mDispatch = DispatchTable.EMPTY;
+    private volatile int[] mBindingPlan;    // Cached position of each binding slot, or null
+    private volatile BindingTable mBindingTable;
+    private final ListenerList<DeviceUpdateListener> mListeners = new ListenerList<>();
     private BluetoothGatt mActiveConnection;
-    private boolean mServicesDiscovered;
-    private byte[] mAdvertisement = new byte[62];
+    private BluetoothGatt mPendingConnection;      // Attempt not yet connected, guarded by mConnectionLock
+    private final Object mConnectionLock = new Object();
+    private volatile boolean mServicesDiscovered;   // On the current connection; cached bindings do not count
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int mRxPhy = BluetoothDevice.PHY_LE_1M;
+    private final Object mAdvertisementLock = new Object();
+    private byte[] mAdvertisement = new byte[62];       // Front buffer, guarded by mAdvertisementLock
+    private byte[] mAdvertisementBack = new byte[62];   // Written only by newAdvertisement()
+    private int mAdvertisementLength;
+    private int mAdvertisementRssi;
+    private volatile long mAdvertisementVersion;
     private int mRssi;
     private long mLastSeen;
     private boolean mConnected;
+    private long mFingerprint;
+    private long mReportedFingerprint;
+    private int mReportedRssi;
+    private long mReportedAt = Long.MIN_VALUE;
+    private final SignalModel mSignal = new SignalModel();
 
     public void init(BluetoothDevice device) {
+        init(device, null);
+    }
+
+    public void init(BluetoothDevice device, Identifier identifier) {
         mDevice = device;
+        mIdentifier = identifier;
+        mPackedAddress = Utils.macToLong(device.getAddress());
+    }
+
+    /**
+     * @return The identifier this device was matched by, or null if it was created some other way.
+     */
+    public Identifier getIdentifier() {
+        return mIdentifier;
     }
 
     public Characteristic getCharacteristic(int id)
     {
-        for (Characteristic c : mCharacteristics) {
-            if (c.getId() == id) return c;
-        }
-        return null;
+        return mDispatch.get(id);
     }
 
     public BluetoothGatt getActiveConnection() {
@@ -73,7 +118,106 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     }
 
     public void connect(Context context) {
-        mDevice.connectGatt(context, false, this);
+        GattCache.prefetch(mPackedAddress);
+        BluetoothGatt gatt = mDevice.connectGatt(context, false, this);
+        synchronized (mConnectionLock) {
+            if (mActiveConnection != gatt) mPendingConnection = gatt;
+        }
+    }
+
+    /**
+     * Abandons a connection attempt that has not come up yet, disconnecting and closing its GATT client so it
+     * stops connecting in the background. Does nothing once the device is connected.
+     */
+    public void cancelConnect() {
+        BluetoothGatt gatt;
+        synchronized (mConnectionLock) {
+            gatt = mPendingConnection;
+            mPendingConnection = null;
+        }
+        if (gatt == null) return;
+        Logging.notice("Device %s connection attempt abandoned.", this.getClass().getSimpleName());
+        gatt.disconnect();
+        gatt.close();
+    }
+
+    /**
+     * Returns a key that identifies this device's service layout, such as a firmware version or database hash
+     * known from its advertisement. Cached layouts stored under a different key are not used.
+     * @return The layout key; 0 if the layout is only identified by the device address.
+     */
+    protected long getGattCacheKey() {
+        return 0;
+    }
+
+    private BindingTable bindingTable() {
+        BindingTable table = mBindingTable;
+        if (table == null) mBindingTable = table = BindingTable.forClass(getClass());
+        return table;
+    }
+
+    // Resolves each binding slot against a cached layout.
+    private static int[] planBinding(BindingTable table, GattLayout layout) {
+        int[] plan = new int[table.size()];
+        for (int g = 0; g < table.getGroupCount(); g++) {
+            for (int slot = table.getGroupStart(g); slot < table.getGroupEnd(g); slot++) {
+                plan[slot] = layout.find(table.getGroupService(g), table.getUuid(slot));
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Binds characteristics from the cached layout as soon as the connection is up, so they can be looked up and
+     * subscribed to while services are discovered. The platform only reads and writes characteristics it has
+     * discovered itself, so they are pointed at the discovered ones, and checked against them, in
+     * onServicesDiscovered.
+     */
+    private void bindFromCache() {
+        GattLayout layout = GattCache.peek(mPackedAddress, getGattCacheKey());
+        if (layout == null) {
+            mBindingPlan = null;
+            return;
+        }
+        BindingTable table = bindingTable();
+        int[] plan = planBinding(table, layout);
+        mBindingPlan = plan;
+        mDispatch = new DispatchTable(table, bind(table, layout.toServices(), plan, DispatchTable.EMPTY));
+        notifyListeners(EVENT_CHARACTERISTICS_BOUND);
+    }
+
+    /**
+     * Finds the characteristic of every binding slot, first at its planned position and then by searching.
+     * Characteristics bound earlier in the connection are kept and pointed at the new native characteristic.
+     */
+    private static Characteristic[] bind(BindingTable table, List<BluetoothGattService> services, int[] plan,
+                                         DispatchTable previous) {
+        Characteristic[] bySlot = new Characteristic[table.size()];
+        for (int g = 0; g < table.getGroupCount(); g++) {
+            UUID serviceUuid = table.getGroupService(g);
+            for (int slot = table.getGroupStart(g); slot < table.getGroupEnd(g); slot++) {
+                UUID characteristicUuid = table.getUuid(slot);
+                BluetoothGattCharacteristic nativeChar = plan == null ? null
+                        : fromPlan(services, plan[slot], serviceUuid, characteristicUuid);
+                for (int s = 0; nativeChar == null && s < services.size(); s++) {
+                    BluetoothGattService candidate = services.get(s);
+                    if (serviceUuid != null && !serviceUuid.equals(candidate.getUuid())) continue;
+                    nativeChar = candidate.getCharacteristic(characteristicUuid);
+                    if (serviceUuid != null) break;
+                }
+
+                Characteristic existing = previous.getSlot(slot);
+                if (nativeChar == null) {
+                    if (existing != null) existing.clearAllCallbacks();
+                } else if (existing != null) {
+                    existing.rebind(nativeChar);
+                    bySlot[slot] = existing;
+                } else {
+                    bySlot[slot] = new Characteristic(nativeChar, table.getId(slot));
+                }
+            }
+        }
+        return bySlot;
     }
 
     public void disconnect() {
@@ -81,7 +225,7 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     }
 
     protected void startIntentions(Intention queue) {
-        mActionRunner.addQueue(new ExecutionQueue(queue));
+        mActionRunner.addQueue(new ExecutionQueue(queue, this));
     }
 
     @Override
@@ -89,14 +233,26 @@ public abstract class SmartDevice extends BluetoothGattCallback {
         super.onConnectionStateChange(gatt, status, newState);
         if (newState == BluetoothAdapter.STATE_CONNECTED) {
             Logging.notice("Device %s connected.", this.getClass().getSimpleName());
-            mActiveConnection = gatt;
+            synchronized (mConnectionLock) {
+                mActiveConnection = gatt;
+                mPendingConnection = null;
+            }
+            bindFromCache();
             mActiveConnection.discoverServices();
-            Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_CONNECTED));
+            notifyListeners(EVENT_CONNECTED);
         } else {
-            Stream.of(mCharacteristics).forEach(Characteristic::clearAllCallbacks);
+            mDispatch.clearAllCallbacks();
             Logging.notice("Device %s disconnected.", this.getClass().getSimpleName());
-            Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_DISCONNECTED));
-            mActiveConnection = null;
+            notifyListeners(EVENT_DISCONNECTED);
+            synchronized (mConnectionLock) {
+                mActiveConnection = null;
+                if (mPendingConnection == gatt) mPendingConnection = null;
+            }
+            mServicesDiscovered = false;
+            mMtu = DEFAULT_MTU;
+            mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            mTxPhy = BluetoothDevice.PHY_LE_1M;
+            mRxPhy = BluetoothDevice.PHY_LE_1M;
             gatt.close();
         }
         mConnected = newState==BluetoothAdapter.STATE_CONNECTED;
@@ -106,54 +262,54 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
         Logging.notice("Device %s services discovered.", this.getClass().getSimpleName());
 
-        DeviceParameters parameters = getClass().getAnnotation(DeviceParameters.class);
-        if (parameters == null) throw new RuntimeException("Device must have DeviceParameters annotation.");
-
-        mCharacteristics.clear();
+        BindingTable table = bindingTable();
+        int[] plan = mBindingPlan;
+        mBindingPlan = null;
 
         try {
-            Stream.of(parameters.characteristics()).forEach((characteristic) -> {
-                UUID characteristicUUID = Utils.uuidFromRef(characteristic.uuid(), characteristic.service());
-                final BluetoothGattService[] service = {null};
-
-                if (characteristic.service().value().length() > 0) {
-                    UUID serviceUUID = Utils.uuidFromRef(characteristic.service());
-                    service[0] = mActiveConnection.getService(serviceUUID);
-                } else {
-                    Stream.of(mActiveConnection.getServices()).forEach((svc) -> {
-                        if (svc.getCharacteristic(characteristicUUID) != null) service[0] = svc;
-                    });
-                }
-
-                if (service[0] != null) {
-                    BluetoothGattCharacteristic nativeChar = service[0].getCharacteristic(characteristicUUID);
-                    if (nativeChar != null) {
-                        mCharacteristics.add(new Characteristic(nativeChar, characteristic.id()));
-                    }
-                }
-            });
+            List<BluetoothGattService> services = gatt.getServices();
+            if (plan == null) {
+                // The cached layout may have finished loading after the connection came up.
+                GattLayout layout = GattCache.peek(mPackedAddress, getGattCacheKey());
+                if (layout != null) plan = planBinding(table, layout);
+            }
+            mDispatch = new DispatchTable(table, bind(table, services, plan, mDispatch));
             mServicesDiscovered = true;
-            Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_SERVICES_DISCOVERED));
+            notifyListeners(EVENT_SERVICES_DISCOVERED);
+            GattCache.update(mPackedAddress, getGattCacheKey(), services);
         } catch (Exception e) {
-            e.printStackTrace();
+            Logging.error("Device %s could not bind characteristics: %s", getClass().getSimpleName(), e);
             disconnect();
         }
     }
 
+    // Takes the characteristic at its cached position, if it is still the one expected there.
+    private static BluetoothGattCharacteristic fromPlan(List<BluetoothGattService> services, int position,
+                                                        UUID serviceUuid, UUID characteristicUuid) {
+        if (position < 0 || (position >>> 16) >= services.size()) return null;
+        BluetoothGattService service = services.get(position >>> 16);
+        if (serviceUuid != null && !serviceUuid.equals(service.getUuid())) return null;
+        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+        int index = position & 0xFFFF;
+        if (index >= characteristics.size()) return null;
+        BluetoothGattCharacteristic characteristic = characteristics.get(index);
+        return characteristicUuid.equals(characteristic.getUuid()) ? characteristic : null;
+    }
+
     @Override
     @SuppressWarnings("Duplicates")
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         Logging.notice("Write result: %d", status);
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_CHARACTERISTIC_WRITTEN));
+                notifyListeners(EVENT_CHARACTERISTIC_WRITTEN);
                 return;
             case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
             case BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_SECURITY_FAILURE));
+                notifyListeners(EVENT_SECURITY_FAILURE);
                 return;
             default:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_CHARACTERISTIC_WRITE_FAILURE));
+                notifyListeners(EVENT_CHARACTERISTIC_WRITE_FAILURE);
         }
     }
 
@@ -162,14 +318,14 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_CHARACTERISTIC_READ));
+                notifyListeners(EVENT_CHARACTERISTIC_READ);
                 return;
             case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
             case BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_SECURITY_FAILURE));
+                notifyListeners(EVENT_SECURITY_FAILURE);
                 return;
             default:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_CHARACTERISTIC_READ_FAILURE));
+                notifyListeners(EVENT_CHARACTERISTIC_READ_FAILURE);
         }
     }
 
@@ -177,18 +333,106 @@ public abstract class SmartDevice extends BluetoothGattCallback {
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_DESCRIPTOR_WRITTEN));
+                notifyListeners(EVENT_DESCRIPTOR_WRITTEN);
                 return;
             default:
-                Stream.of(mListeners).forEach(l->l.onDeviceUpdateEvent(EVENT_DESCRIPTOR_WRITE_FAILURE));
+                notifyListeners(EVENT_DESCRIPTOR_WRITE_FAILURE);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Logging.notice("Device %s MTU changed to %d.", this.getClass().getSimpleName(), mtu);
+            mMtu = mtu;
+            notifyListeners(EVENT_MTU_CHANGED);
+        } else {
+            notifyListeners(EVENT_MTU_CHANGE_FAILURE);
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Logging.notice("Device %s PHY changed to %d/%d.", this.getClass().getSimpleName(), txPhy, rxPhy);
+            mTxPhy = txPhy;
+            mRxPhy = rxPhy;
+            notifyListeners(EVENT_PHY_UPDATED);
+        } else {
+            notifyListeners(EVENT_PHY_UPDATE_FAILURE);
         }
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        Stream.of(mCharacteristics)
-                .filter(n->n.getNativeCharacteristic() == characteristic)
-                .forEach(Characteristic::notifyUpdate);
+        Characteristic target = mDispatch.get(characteristic);
+        if (target != null) target.notifyUpdate();
+    }
+
+    /**
+     * @return The ATT MTU negotiated for the current connection; a single write carries at most this minus 3 bytes.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return The connection priority last requested for the current connection.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * @return The BluetoothDevice PHY_LE_* the current connection transmits on.
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * @return The BluetoothDevice PHY_LE_* the current connection receives on.
+     */
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * Asks for a larger MTU; the result is delivered as EVENT_MTU_CHANGED or EVENT_MTU_CHANGE_FAILURE.
+     * @return false if there is no connection, the request could not be sent, or the platform is older than 5.0.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestMtu(int mtu) {
+        BluetoothGatt gatt = mActiveConnection;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt != null && gatt.requestMtu(mtu);
+    }
+
+    /**
+     * Requests a BluetoothGatt CONNECTION_PRIORITY_*. The platform does not report when it takes effect.
+     * @return false if there is no connection, the request could not be sent, or the platform is older than 5.0.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = mActiveConnection;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || gatt == null) return false;
+        if (!gatt.requestConnectionPriority(priority)) return false;
+        mConnectionPriority = priority;
+        return true;
+    }
+
+    /**
+     * Sets the preferred PHYs; the result is delivered as EVENT_PHY_UPDATED or EVENT_PHY_UPDATE_FAILURE.
+     * @param txPhy A mask of BluetoothDevice PHY_LE_*_MASK values.
+     * @param rxPhy A mask of BluetoothDevice PHY_LE_*_MASK values.
+     * @param phyOptions A BluetoothDevice PHY_OPTION_* for the coded PHY.
+     * @return false if there is no connection or the platform is older than 8.0.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        BluetoothGatt gatt = mActiveConnection;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || gatt == null) return false;
+        gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+        return true;
     }
 
     public boolean isReady() {
@@ -199,6 +443,17 @@ public abstract class SmartDevice extends BluetoothGattCallback {
         mListeners.add(listener);
     }
 
+    /**
+     * Subscribes to updates delivered on an executor, so a slow listener does not hold up Bluetooth callbacks.
+     */
+    public void subscribeToUpdates(DeviceUpdateListener listener, Executor executor) {
+        mListeners.add(listener, executor);
+    }
+
+    private void notifyListeners(int event) {
+        mListeners.dispatch(UPDATE_EVENT, event, null);
+    }
+
     public void unsubscribeToUpdates(DeviceUpdateListener listener) {
         mListeners.remove(listener);
     }
@@ -207,27 +462,169 @@ public abstract class SmartDevice extends BluetoothGattCallback {
         return mDevice.getAddress();
     }
 
+    /**
+     * @return The MAC address of this device packed into the lower 48 bits of a long.
+     */
+    public long getPackedAddress() {
+        return mPackedAddress;
+    }
+
     public void notifyEvent(int event) {
 
     }
 
+    /**
+     * Called when this device broadcasts an iBeacon or Eddystone frame, while beacon decoding is enabled.
+     * The frame is reused after this call returns.
+     * @param frame The decoded frame.
+     */
+    public void onBeaconFrame(BeaconFrame frame) {
+
+    }
+
     public BluetoothDevice getDevice() {
         return mDevice;
     }
 
     public void newAdvertisement(byte[] data, int rssi) {
+        newAdvertisement(data, data.length, rssi);
+    }
+
+    /**
+     * Records a new advertisement. The data is copied, so the caller may reuse its buffer.
+     * The record is written into a back buffer that readers never see, then swapped with the front buffer,
+     * so readers only ever wait for the swap. Must only be called from the scanner thread.
+     * @param data The raw scan record.
+     * @param length The number of valid bytes in data.
+     * @param rssi The received signal strength.
+     */
+    public void newAdvertisement(byte[] data, int length, int rssi) {
         mLastSeen = System.currentTimeMillis();
-        mAdvertisement = data;
-        System.arraycopy(data, 0, mAdvertisement, 0, mAdvertisement.length);
+        byte[] back = mAdvertisementBack;
+        if (back.length < length) back = new byte[length];
+        System.arraycopy(data, 0, back, 0, length);
+        synchronized (mAdvertisementLock) {
+            mAdvertisementBack = mAdvertisement;
+            mAdvertisement = back;
+            mAdvertisementLength = length;
+            mAdvertisementRssi = rssi;
+            mAdvertisementVersion++;
+        }
         mRssi = rssi;
+        mSignal.update(rssi, SystemClock.elapsedRealtime());
+        mFingerprint = fingerprint(data, length);
+    }
+
+    /**
+     * Restores the advertisement and signal a device had when it was last saved, before any advertisement has
+     * been received from it. Used by the scanner when restoring devices from a snapshot.
+     * @param data The saved scan record.
+     * @param length The number of valid bytes in data.
+     * @param rssi The saved smoothed signal strength.
+     * @param lastSeen When the device was last seen, in milliseconds since the epoch.
+     */
+    public void restoreAdvertisement(byte[] data, int length, int rssi, long lastSeen) {
+        newAdvertisement(data, length, rssi);
+        mLastSeen = lastSeen;
+    }
+
+    /**
+     * Decides whether the latest advertisement should be reported to scan listeners, and if so, records it
+     * as reported. Called by the scanner after newAdvertisement().
+     * @param rssiDelta The RSSI change in dBm that is reported even if the payload is unchanged.
+     * @param minInterval The minimum time between reports, in milliseconds.
+     * @param now The current time, in milliseconds, on the same clock as previous calls.
+     * @return true if the advertisement should be reported.
+     */
+    public boolean shouldReportUpdate(int rssiDelta, long minInterval, long now) {
+        boolean changed = mFingerprint != mReportedFingerprint || Math.abs(mRssi - mReportedRssi) >= rssiDelta;
+        if (!changed || (mReportedAt != Long.MIN_VALUE && now - mReportedAt < minInterval)) return false;
+        mReportedFingerprint = mFingerprint;
+        mReportedRssi = mRssi;
+        mReportedAt = now;
+        return true;
+    }
+
+    // 64-bit FNV-1a
+    private static long fingerprint(byte[] data, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
+    /**
+     * @return The signal strength of the latest advertisement. Use getSmoothedRssi() for anything that
+     * compares devices or tracks proximity.
+     */
     public int getRssi() {
         return mRssi;
     }
 
+    /**
+     * @return The filtered signal strength, in dBm.
+     */
+    public double getSmoothedRssi() {
+        return mSignal.getEstimate();
+    }
+
+    /**
+     * @return The estimated distance to the device, in meters.
+     */
+    public double getDistance() {
+        return mSignal.getDistance();
+    }
+
+    /**
+     * @return The signal model for this device, for its variance and trend or to calibrate distance estimates.
+     */
+    public SignalModel getSignal() {
+        return mSignal;
+    }
+
+    /**
+     * @return A copy of the latest advertisement. Prefer copyAdvertisement() or getAdvertisementSnapshot()
+     * when polling, as this allocates on every call.
+     */
     public byte[] getAdvertisement() {
-        return mAdvertisement;
+        synchronized (mAdvertisementLock) {
+            return Arrays.copyOf(mAdvertisement, mAdvertisementLength);
+        }
+    }
+
+    /**
+     * @return The version of the latest advertisement, which increases with every advertisement received.
+     */
+    public long getAdvertisementVersion() {
+        return mAdvertisementVersion;
+    }
+
+    /**
+     * Copies the latest advertisement into a buffer.
+     * @param out The buffer to copy into; 62 bytes fits any legacy advertisement and scan response.
+     * @return The length of the advertisement, which may exceed the number of bytes copied.
+     */
+    public int copyAdvertisement(byte[] out) {
+        synchronized (mAdvertisementLock) {
+            System.arraycopy(mAdvertisement, 0, out, 0, Math.min(out.length, mAdvertisementLength));
+            return mAdvertisementLength;
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the latest advertisement, reusing the previous snapshot if no
+     * advertisement has been received since it was taken.
+     * @param previous The previously returned snapshot, or null.
+     * @return The snapshot of the latest advertisement.
+     */
+    public AdvertisementSnapshot getAdvertisementSnapshot(AdvertisementSnapshot previous) {
+        if (previous != null && previous.getVersion() == mAdvertisementVersion) return previous;
+        synchronized (mAdvertisementLock) {
+            return new AdvertisementSnapshot(Arrays.copyOf(mAdvertisement, mAdvertisementLength),
+                    mAdvertisementVersion, mAdvertisementRssi);
+        }
     }
 
     @SuppressWarnings("WeakerAccess")
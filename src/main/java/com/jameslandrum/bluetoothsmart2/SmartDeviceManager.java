@@ -18,24 +18,23 @@ package com.jameslandrum.bluetoothsmart2;
 
 import android.app.Application;
 import android.content.Context;
-import com.annimon.stream.Stream;
 import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
 import com.jameslandrum.bluetoothsmart2.scanner.DeviceScanner;
+import com.jameslandrum.bluetoothsmart2.scanner.ScanScheduler;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 @SuppressWarnings("ALL")
 public class SmartDeviceManager {
+    private static final String GATT_CACHE_DIRECTORY = "bluetoothsmart-gatt";
+    private static final String DEVICE_SNAPSHOT = "bluetoothsmart-devices.snapshot";
     private static SmartDeviceManager mManager;
 
-    private int mActiveMode = DeviceScanner.SCAN_MODE_LOW_LATENCY;
-    private int mActiveBatchInterval = 0;
-    private int mYieldMode = DeviceScanner.SCAN_MODE_LOW_POWER;
-    private int mYieldBatchInterval = 15000;
-    private boolean mIsForeground = true;
-    private boolean mIsRunning = false;
+    private ScanScheduler mScheduler;
     private DeviceScanner mScanner;
     private static WeakReference<Application> mActiveContext;
 
@@ -54,11 +53,13 @@ public class SmartDeviceManager {
         {
             mManager = new SmartDeviceManager();
             mManager.mScanner = DeviceScanner.getInstance();
+            mManager.mScheduler = new ScanScheduler(mManager.mScanner);
         }
     }
 
     public static void setActiveContext(Application activeContext) {
         SmartDeviceManager.mActiveContext = new WeakReference<>(activeContext);
+        GattCache.setStore(new GattCache.FileStore(new File(activeContext.getCacheDir(), GATT_CACHE_DIRECTORY)));
     }
 
     public static Context getActiveContext() {
@@ -67,35 +68,31 @@ public class SmartDeviceManager {
 
     public void startScan()
     {
-        if (mIsForeground) {
-            mScanner.startScan(mActiveMode, mActiveBatchInterval);
-            Logging.notice("Starting scan in Active mode.");
-        } else {
-            mScanner.startScan(mYieldMode, mYieldBatchInterval);
-            Logging.notice("Starting scan in Passive mode.");
-        }
+        mScheduler.start();
     }
 
     public void stopScan() {
-        mScanner.stopScan();
+        mScheduler.stop();
+    }
+
+    public ScanScheduler getScheduler() {
+        return mScheduler;
     }
 
+    /**
+     * Enables adapting the scan mode and batch interval to how often new devices appear.
+     * @see ScanScheduler#setAdaptive(boolean)
+     */
+    public void setAdaptiveScanning(boolean adaptive) {
+        mScheduler.setAdaptive(adaptive);
+    }
 
     public void setYieldMode(int mode) {
         setYieldMode(mode, 0);
     }
 
     public void setYieldMode(int mode, int batchInterval) {
-        mYieldMode = mode;
-        mYieldBatchInterval = batchInterval;
-        if (!mIsForeground && mIsRunning) {
-            scanParametersChanged();
-        }
-    }
-
-    private void scanParametersChanged() {
-        Logging.notice("Scan parameters have changed. Restarting scanning.");
-        startScan();
+        mScheduler.setYieldMode(mode, batchInterval);
     }
 
     public void setActiveMode(int mode) {
@@ -103,11 +100,17 @@ public class SmartDeviceManager {
     }
 
     public void setActiveMode(int mode, int batchInterval) {
-        mActiveMode = mode;
-        mActiveBatchInterval = batchInterval;
-        if (mIsForeground && mIsRunning) {
-            scanParametersChanged();
-        }
+        mScheduler.setActiveMode(mode, batchInterval);
+    }
+
+    /**
+     * Saves known devices to the application's files, so they are listed again as soon as the app restarts.
+     * Requires an active context.
+     * @param capacity The most devices to save.
+     * @see DeviceScanner#enableSnapshot(File, int)
+     */
+    public void enableDeviceSnapshot(int capacity) {
+        mScanner.enableSnapshot(new File(getActiveContext().getFilesDir(), DEVICE_SNAPSHOT), capacity);
     }
 
     public void addIdentifier(Identifier identifier) {
@@ -118,30 +121,36 @@ public class SmartDeviceManager {
         mScanner.addScanListener(scannerListener);
     }
 
+    public void addScanListener(ScannerCallback scannerListener, Executor executor) {
+        mScanner.addScanListener(scannerListener, executor);
+    }
+
     public void removeScanListener(ScannerCallback scannerListener) {
         mScanner.removeScanListener(scannerListener);
     }
 
     public void resume() {
         Logging.notice("Resuming Scanning");
-        mIsForeground = true;
-        scanParametersChanged();
+        mScheduler.setForeground(true);
+        if (!mScheduler.isRunning()) mScheduler.start();
     }
 
     public void yield() {
         Logging.notice("Yielding Scanning");
-        mIsForeground = false;
-        scanParametersChanged();
+        mScheduler.setForeground(false);
+        if (!mScheduler.isRunning()) mScheduler.start();
     }
 
     public List<SmartDevice> getAllDevices() {
         return mScanner.getAllDevices();
     }
 
+    /**
+     * Forgets devices that have not been seen for the given time, once. To have devices expire on their own, use
+     * {@link DeviceScanner#setStaleTimeout(long)} or {@link Identifier.Builder#staleTimeout(long)}.
+     */
     public void cleanup(int staleTime) {
-        Stream.of(mScanner.getAllDevices())
-                .filter(d->System.currentTimeMillis()-d.getLastSeen()>staleTime)
-                .forEach(d->mScanner.forgetDevice(d));
+        mScanner.forgetStale(staleTime);
     }
 
     public SmartDevice getDeviceByMac(String macAddress) {
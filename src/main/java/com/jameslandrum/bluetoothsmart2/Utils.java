@@ -22,7 +22,29 @@ import java.util.*;
 
 @SuppressWarnings("WeakerAccess")
 public class Utils {
-    private static final UUID UUID_16 = UUID.fromString("00000000-0000-1000-8000-00805F9B34FB");
+    /** The Bluetooth base UUID, 00000000-0000-1000-8000-00805F9B34FB, that 16 and 32-bit UUIDs expand into. */
+    public static final long BASE_UUID_MSB = 0x0000000000001000L;
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final UUID UUID_16 = new UUID(BASE_UUID_MSB, BASE_UUID_LSB);
+    private static final int CACHE_SIZE = 256;
+    private static final ResolvedUuid[] mResolved = new ResolvedUuid[CACHE_SIZE];
+    private static final UUID[] mInterned = new UUID[CACHE_SIZE];
+
+    // Entries are immutable, so the direct mapped cache needs no locking; a lost race only costs a re-parse.
+    private static final class ResolvedUuid {
+        final String mRef;
+        final long mBaseMsb;
+        final long mBaseLsb;
+        final UUID mUuid;
+
+        ResolvedUuid(String ref, long baseMsb, long baseLsb, UUID uuid) {
+            mRef = ref;
+            mBaseMsb = baseMsb;
+            mBaseLsb = baseLsb;
+            mUuid = uuid;
+        }
+    }
 
     public static UUID uuidFromRef(UUIDRef ref)
     {
@@ -34,26 +56,121 @@ public class Utils {
         return uuidFromString(ref, UUID_16);
     }
 
+    /**
+     * Resolves a 16-bit, 32-bit or 128-bit UUID string. Short UUIDs replace the corresponding bits of the base.
+     * Results are kept in a bounded cache, so resolving the same reference again does not parse or allocate.
+     */
     public static UUID uuidFromString(String ref, UUID base)
     {
-        UUID result;
+        long baseMsb = base.getMostSignificantBits();
+        long baseLsb = base.getLeastSignificantBits();
+        int index = (ref.hashCode() ^ (int) (baseMsb ^ baseMsb >>> 32 ^ baseLsb)) & (CACHE_SIZE - 1);
 
-        if (ref.length() == 4) {
-            String uuidres = base.toString().substring(0,4) + ref + base.toString().substring(8);
-            result = UUID.fromString(uuidres);
-        } else if (ref.length() == 8) {
-            String uuidres = ref + base.toString().substring(8);
-            result = UUID.fromString(uuidres);
-        } else {
-            result = UUID.fromString(ref);
+        ResolvedUuid cached = mResolved[index];
+        if (cached != null && cached.mBaseMsb == baseMsb && cached.mBaseLsb == baseLsb && cached.mRef.equals(ref)) {
+            return cached.mUuid;
         }
 
-        if (result == null) throw new RuntimeException("UUID must be 16-bit, 32-bit, or 128-bit.");
+        UUID result;
+        switch (ref.length()) {
+            case 4:
+                result = intern(expand16(parseHex(ref, 0, 4), baseMsb), baseLsb);
+                break;
+            case 8:
+                result = intern(expand32(parseHex(ref, 0, 8), baseMsb), baseLsb);
+                break;
+            case 36:
+                if (ref.charAt(8) != '-' || ref.charAt(13) != '-' || ref.charAt(18) != '-' || ref.charAt(23) != '-') {
+                    throw new IllegalArgumentException("Invalid UUID: " + ref);
+                }
+                result = intern(parseHex(ref, 0, 8) << 32 | parseHex(ref, 9, 13) << 16 | parseHex(ref, 14, 18),
+                        parseHex(ref, 19, 23) << 48 | parseHex(ref, 24, 36));
+                break;
+            default:
+                result = UUID.fromString(ref);
+        }
 
+        mResolved[index] = new ResolvedUuid(ref, baseMsb, baseLsb, result);
+        return result;
+    }
+
+    /**
+     * @return The most significant bits of a 16-bit UUID expanded into a base UUID.
+     */
+    public static long expand16(long value, long baseMsb) {
+        return baseMsb & ~(0xFFFFL << 32) | (value & 0xFFFF) << 32;
+    }
+
+    /**
+     * @return The most significant bits of a 32-bit UUID expanded into a base UUID.
+     */
+    public static long expand32(long value, long baseMsb) {
+        return baseMsb & 0xFFFFFFFFL | (value & 0xFFFFFFFFL) << 32;
+    }
+
+    /**
+     * Returns a shared UUID instance for the given bits, from a bounded cache of recently used UUIDs.
+     */
+    public static UUID intern(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        int index = (int) (h >>> 32) & (CACHE_SIZE - 1);
+        UUID cached = mInterned[index];
+        if (cached != null && cached.getMostSignificantBits() == msb && cached.getLeastSignificantBits() == lsb) {
+            return cached;
+        }
+        UUID result = new UUID(msb, lsb);
+        mInterned[index] = result;
+        return result;
+    }
+
+    private static long parseHex(String value, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) throw new IllegalArgumentException("Invalid UUID: " + value);
+            result = result << 4 | digit;
+        }
         return result;
     }
 
     static UUID uuidFromRef(UUIDRef uuid, UUIDRef service) {
         return uuidFromString(uuid.value(), uuidFromRef(service));
     }
+
+    /**
+     * Packs a colon separated MAC address into the lower 48 bits of a long.
+     * @param address The address, as returned by BluetoothDevice.getAddress().
+     * @return The packed address, or -1 if the address is malformed.
+     */
+    public static long macToLong(String address) {
+        if (address == null || address.length() != 17) return -1;
+        long result = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return -1;
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    /**
+     * Formats a packed MAC address as a colon separated string.
+     * @param mac The packed address.
+     * @return The address in the form BluetoothDevice.getAddress() uses.
+     */
+    public static String macToString(long mac) {
+        char[] out = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (mac >>> (40 - i * 8)) & 0xFF;
+            out[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            out[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+            if (i < 5) out[i * 3 + 2] = ':';
+        }
+        return new String(out);
+    }
 }
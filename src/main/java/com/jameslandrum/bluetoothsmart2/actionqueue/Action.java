@@ -18,10 +18,12 @@ package com.jameslandrum.bluetoothsmart2.actionqueue;
 
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
+/**
+ * A step of an intention. Actions only describe what to do; each run keeps its state in an ActionHandle, so an
+ * action can be run on several devices at once.
+ */
 public abstract class Action {
     private ResultHandler mResultHandler = (code)->code == Result.OK;
-    private final Object mLock = new Object();
-    private Result mResult = Result.UNKNOWN;
 
     public Action(ResultHandler handler) {
         if (handler!=null) mResultHandler = handler;
@@ -31,54 +33,37 @@ public abstract class Action {
         return mResultHandler.invoke(resultCode);
     }
 
-    void setResult(Result result) {
-        mResult = result;
-    }
-
-    void hold(int i) {
-        synchronized (mLock) {
-            try {
-                mLock.wait(i);
-            } catch (InterruptedException ignored) {}
-        }
-    }
-
-    void finish() {
-        synchronized (mLock) {
-            mLock.notify();
-        }
-    }
+    /**
+     * Starts the action on a device without waiting for it to finish. The action completes the handle once its
+     * operation does, from whichever thread reports it; anything it registers on the handle is released then.
+     */
+    abstract void start(SmartDevice device, ActionHandle handle);
+    abstract boolean purge();
 
-    void waitForFinish() {
-        synchronized (mLock) {
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                mResult = Result.TIMED_OUT;
-            }
-        }
+    /**
+     * @return The GattArbiter permit the action holds while it runs, or NONE if it does not use the radio.
+     */
+    @GattArbiter.Kind
+    int getArbitration() {
+        return GattArbiter.NONE;
     }
 
-    void waitForFinish(int timeout) {
-        synchronized (mLock) {
-            try {
-                if (timeout == -1) mLock.wait();
-                else mLock.wait(timeout);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                mResult = Result.TIMED_OUT;
-            }
-        }
+    /**
+     * @return The GattArbiter permit the action holds while it runs on this device. Actions that have nothing to
+     *         do on the device return NONE, so they do not wait behind other devices.
+     */
+    @GattArbiter.Kind
+    int getArbitration(SmartDevice device) {
+        return getArbitration();
     }
 
-    public Result getResult() {
-        return mResult;
+    /**
+     * @return false if the action never does anything on the device, so a queue for it can leave the action out.
+     */
+    boolean appliesTo(SmartDevice device) {
+        return true;
     }
 
-    abstract Result execute(SmartDevice device);
-    abstract boolean purge();
-
     public enum Result {
         /** An unusual error occurred **/
         UNKNOWN,
@@ -0,0 +1,179 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import android.os.SystemClock;
+import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One run of an action on a device. The action starts its operation and returns; the handle is completed later,
+ * usually from a device update delivered by the BluetoothGattCallback, or by its timeout.
+ * Only the first completion counts, and completing releases the listener and timeout the run registered.
+ */
+final class ActionHandle {
+    interface Callback {
+        void onComplete(ActionHandle handle, Action.Result result);
+    }
+
+    private final SmartDevice mDevice;
+    private final Callback mCallback;
+    private final AtomicBoolean mDone = new AtomicBoolean();
+    private volatile Action.Result mResult = Action.Result.UNKNOWN;
+    private volatile DeviceUpdateListener mListener;
+    private volatile DeviceUpdateListener mDisconnectWatch;
+    private final AtomicReference<Runnable> mCleanup = new AtomicReference<>();
+    private volatile ScheduledFuture<?> mTimeout;
+    private volatile long mQueueDelay;
+    private volatile long mLastProgress;
+
+    ActionHandle(SmartDevice device, Callback callback) {
+        mDevice = device;
+        mCallback = callback;
+    }
+
+    SmartDevice getDevice() {
+        return mDevice;
+    }
+
+    boolean isDone() {
+        return mDone.get();
+    }
+
+    Action.Result getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return How long the action waited for its GattArbiter permit, in milliseconds.
+     */
+    long getQueueDelay() {
+        return mQueueDelay;
+    }
+
+    void setQueueDelay(long delay) {
+        mQueueDelay = delay;
+    }
+
+    /**
+     * Subscribes to device updates until the handle completes. Must be called before starting the operation.
+     */
+    void listen(DeviceUpdateListener listener) {
+        mListener = listener;
+        mDevice.subscribeToUpdates(listener);
+        if (mDone.get()) mDevice.unsubscribeToUpdates(listener);
+    }
+
+    /**
+     * Runs once the handle completes, however it completes, before the result is handled. Actions use it to undo
+     * changes to shared state that their own completion paths would miss, such as a timeout.
+     */
+    void onFinish(Runnable cleanup) {
+        mCleanup.set(cleanup);
+        if (mDone.get()) runCleanup();
+    }
+
+    /**
+     * Completes the handle with FAILED if the device disconnects, whatever the action listens for, so a permit is
+     * never held across a dropped link.
+     */
+    void failOnDisconnect() {
+        DeviceUpdateListener watch = event -> {
+            if (event == SmartDevice.EVENT_DISCONNECTED) complete(Action.Result.FAILED);
+        };
+        mDisconnectWatch = watch;
+        mDevice.subscribeToUpdates(watch);
+        if (mDone.get()) mDevice.unsubscribeToUpdates(watch);
+    }
+
+    /**
+     * Completes the handle with TIMED_OUT if it is still running after the given time.
+     * @param timeout The timeout in milliseconds, or -1 to wait indefinitely.
+     */
+    void timeout(long timeout) {
+        timeout(timeout, null);
+    }
+
+    /**
+     * Completes the handle with TIMED_OUT if it is still running after the given time, first calling onTimeout so
+     * the action can abandon its operation.
+     * @param timeout The timeout in milliseconds, or -1 to wait indefinitely.
+     */
+    void timeout(long timeout, Runnable onTimeout) {
+        if (timeout < 0) return;
+        mTimeout = ActionScheduler.schedule(() -> {
+            if (mDone.get()) return;
+            if (onTimeout != null) onTimeout.run();
+            complete(Action.Result.TIMED_OUT);
+        }, timeout, TimeUnit.MILLISECONDS);
+        if (mDone.get()) mTimeout.cancel(false);
+    }
+
+    /**
+     * Completes the handle with TIMED_OUT once no progress has been reported for the given time, so long transfers
+     * only time out when they stall.
+     * @param timeout The timeout in milliseconds, or -1 to wait indefinitely.
+     */
+    void idleTimeout(long timeout) {
+        if (timeout < 0) return;
+        mLastProgress = SystemClock.elapsedRealtime();
+        scheduleIdleCheck(timeout, timeout);
+    }
+
+    /**
+     * Restarts the idle timeout.
+     */
+    void progress() {
+        mLastProgress = SystemClock.elapsedRealtime();
+    }
+
+    private void scheduleIdleCheck(long timeout, long delay) {
+        mTimeout = ActionScheduler.schedule(() -> {
+            long idle = SystemClock.elapsedRealtime() - mLastProgress;
+            if (idle >= timeout) complete(Action.Result.TIMED_OUT);
+            else scheduleIdleCheck(timeout, timeout - idle);
+        }, delay, TimeUnit.MILLISECONDS);
+        if (mDone.get()) mTimeout.cancel(false);
+    }
+
+    /**
+     * @return false if the handle had already completed.
+     */
+    boolean complete(Action.Result result) {
+        if (!mDone.compareAndSet(false, true)) return false;
+        mResult = result;
+        DeviceUpdateListener listener = mListener;
+        if (listener != null) mDevice.unsubscribeToUpdates(listener);
+        DeviceUpdateListener watch = mDisconnectWatch;
+        if (watch != null) mDevice.unsubscribeToUpdates(watch);
+        ScheduledFuture<?> timeout = mTimeout;
+        if (timeout != null) timeout.cancel(false);
+        runCleanup();
+        mCallback.onComplete(this, result);
+        return true;
+    }
+
+    private void runCleanup() {
+        Runnable cleanup = mCleanup.getAndSet(null);
+        if (cleanup != null) cleanup.run();
+    }
+}
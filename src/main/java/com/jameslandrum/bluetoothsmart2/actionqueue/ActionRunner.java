@@ -16,65 +16,21 @@
 
 package com.jameslandrum.bluetoothsmart2.actionqueue;
 
-import com.jameslandrum.bluetoothsmart2.Logging;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
-import java.util.ArrayList;
-
+/**
+ * Runs a device's execution queues in order, on a lane of the default ActionScheduler.
+ */
 @SuppressWarnings("unused")
-public final class ActionRunner extends Thread {
-    private final Object mLock = new Object();
-    private Executor mExecutor;
-    private SmartDevice mDevice;
+public final class ActionRunner {
+    private final ActionScheduler.Lane mLane;
 
     public ActionRunner(SmartDevice parent) {
-        mDevice = parent;
-    }
-
-    private class Executor extends Thread {
-        private ArrayList<ExecutionQueue> mQueues = new ArrayList<>();
-
-        @Override
-        public void run() {
-            Logging.notice("ActionRunner thread has started.");
-            while (!interrupted()) {
-                try {
-                    if (!mQueues.isEmpty()) {
-                        Logging.notice("ActionRunner queue started.");
-                        ExecutionQueue mActiveQueue = mQueues.remove(0);
-                        while (!mActiveQueue.completed()) {
-                            if (!mActiveQueue.step(mDevice)) {
-                                break;
-                            }
-                        }
-                    } else {
-                        Logging.notice("ActionRunner queue ended.");
-                        synchronized (mLock) {
-                            mLock.wait();
-                        }
-                    }
-                } catch (InterruptedException ignored) {}
-            }
-            Logging.notice("ActionRunner thread has terminated.");
-            mExecutor = null;
-        }
-
-        void insertQueue(ExecutionQueue queue) {
-            mQueues.add(queue);
-            synchronized (mLock) {
-                mLock.notify();
-            }
-        }
+        mLane = ActionScheduler.getDefault().createLane(parent);
     }
 
     public void addQueue(ExecutionQueue queue)
     {
-        if (mExecutor == null) {
-            mExecutor = new Executor();
-            mExecutor.start();
-            mExecutor.insertQueue(queue);
-        } else {
-            mExecutor.insertQueue(queue);
-        }
+        mLane.submit(queue);
     }
 }
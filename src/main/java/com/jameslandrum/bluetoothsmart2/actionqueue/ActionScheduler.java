@@ -0,0 +1,168 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import com.jameslandrum.bluetoothsmart2.Logging;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the execution queues of every device on a small, shared pool of worker threads.
+ *
+ * Each device has a lane, which runs its queues one at a time and in the order they were added. Actions do not
+ * block, so a lane only holds a worker while it starts an action or handles a result, and gives it up while the
+ * operation is in flight. Workers that stay idle for a while are stopped, so the number of threads follows the
+ * amount of Bluetooth work rather than the number of devices. Action timeouts share a single timer thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ActionScheduler {
+    public static final int DEFAULT_WORKERS = 4;
+    private static final long IDLE_TIMEOUT = 30000;
+
+    private static volatile ActionScheduler mDefault;
+    private static final ScheduledThreadPoolExecutor mTimer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "BluetoothSmart-Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ThreadPoolExecutor mWorkers;
+
+    /**
+     * @param maxWorkers The most threads that start actions and handle their results at the same time.
+     */
+    public ActionScheduler(int maxWorkers) {
+        if (maxWorkers < 1) throw new IllegalArgumentException("An action scheduler needs at least one worker.");
+        AtomicInteger count = new AtomicInteger();
+        mWorkers = new ThreadPoolExecutor(maxWorkers, maxWorkers, IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "BluetoothSmart-Action-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        mWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The scheduler used by devices, created with DEFAULT_WORKERS workers on first use.
+     */
+    public static ActionScheduler getDefault() {
+        if (mDefault == null) {
+            synchronized (ActionScheduler.class) {
+                if (mDefault == null) mDefault = new ActionScheduler(DEFAULT_WORKERS);
+            }
+        }
+        return mDefault;
+    }
+
+    /**
+     * Replaces the scheduler used by devices created from now on.
+     */
+    public static void setDefault(ActionScheduler scheduler) {
+        synchronized (ActionScheduler.class) {
+            mDefault = scheduler;
+        }
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return mTimer.schedule(task, delay, unit);
+    }
+
+    /**
+     * @return The number of worker threads currently running.
+     */
+    public int getWorkerCount() {
+        return mWorkers.getPoolSize();
+    }
+
+    /**
+     * Creates a lane for a device. Lanes do not hold a thread, so an idle lane costs only its own object.
+     */
+    public Lane createLane(SmartDevice device) {
+        return new Lane(device);
+    }
+
+    /**
+     * Runs the queues of one device in order.
+     */
+    public final class Lane implements Runnable {
+        private final SmartDevice mDevice;
+        private final ArrayDeque<ExecutionQueue> mQueues = new ArrayDeque<>();    // Guarded by itself
+        private ExecutionQueue mActive;
+        private boolean mScheduled;     // True while a queue is running or the lane is waiting for a worker
+        private final Runnable mResume = () -> mWorkers.execute(this);
+
+        private Lane(SmartDevice device) {
+            mDevice = device;
+        }
+
+        public void submit(ExecutionQueue queue) {
+            synchronized (mQueues) {
+                mQueues.add(queue);
+                if (mScheduled) return;
+                mScheduled = true;
+            }
+            mWorkers.execute(this);
+        }
+
+        /**
+         * @return The number of queues waiting to run, not counting one that is running.
+         */
+        public int getPendingCount() {
+            synchronized (mQueues) {
+                return mQueues.size();
+            }
+        }
+
+        // Starts the next action of the active queue; its completion schedules the lane again.
+        @Override
+        public void run() {
+            ExecutionQueue queue;
+            synchronized (mQueues) {
+                while (mActive == null || mActive.completed()) {
+                    mActive = mQueues.poll();
+                    if (mActive == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                queue = mActive;
+            }
+            try {
+                queue.step(mDevice, mWorkers, mResume);
+            } catch (RuntimeException e) {
+                // A queue that throws is logged and dropped, so the lane moves on to the next one.
+                Logging.error("Queue for %s failed: %s", mDevice.getClass().getSimpleName(), e);
+                synchronized (mQueues) {
+                    if (mActive == queue) mActive = null;
+                }
+                mResume.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Recycles the chunk buffers of streaming writes. Characteristic values must be exactly as long as the chunk they
+ * carry, so buffers are only reused for chunks of the same size.
+ */
+final class ChunkPool {
+    private static final int MAX_POOLED = 16;
+    private static final ArrayDeque<byte[]> mPool = new ArrayDeque<>();   // Guarded by itself
+
+    private ChunkPool() {
+    }
+
+    static byte[] acquire(int size) {
+        synchronized (mPool) {
+            Iterator<byte[]> buffers = mPool.iterator();
+            while (buffers.hasNext()) {
+                byte[] buffer = buffers.next();
+                if (buffer.length == size) {
+                    buffers.remove();
+                    return buffer;
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    static void release(byte[] buffer) {
+        synchronized (mPool) {
+            if (mPool.size() == MAX_POOLED) mPool.pollLast();
+            mPool.addFirst(buffer);
+        }
+    }
+}
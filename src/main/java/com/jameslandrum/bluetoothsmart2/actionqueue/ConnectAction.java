@@ -18,10 +18,11 @@ package com.jameslandrum.bluetoothsmart2.actionqueue;
 
 import android.content.Context;
 import android.support.annotation.Nullable;
-import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
 final class ConnectAction extends Action {
+    private static final int CONNECT_TIMEOUT = 60000;
+
     private Context mContext;
 
     ConnectAction(Context context, @Nullable ResultHandler handler) {
@@ -30,37 +31,37 @@ final class ConnectAction extends Action {
     }
 
     @Override
-    public Result execute(SmartDevice device) {
+    void start(SmartDevice device, ActionHandle handle) {
         if (device.isConnected()) {
-            setResult(Result.OK);
-        } else {
-            device.subscribeToUpdates(mListener);
-            device.connect(mContext);
-            waitForFinish(60000);
+            handle.complete(Result.OK);
+            return;
         }
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_DISCONNECTED:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                    device.cancelConnect();
+                    handle.complete(Result.FAILED);
+                    break;
+                case SmartDevice.EVENT_SERVICES_DISCOVERED:
+                    handle.complete(Result.OK);
+                    break;
+                default:
+                    break;
+            }
+        });
+        // The attempt is closed before the permit is released, so it cannot keep connecting behind the next one.
+        handle.timeout(CONNECT_TIMEOUT, device::cancelConnect);
+        device.connect(mContext);
+    }
 
-        device.unsubscribeToUpdates(mListener);
-        return getResult();
+    @Override
+    int getArbitration() {
+        return GattArbiter.CONNECT;
     }
 
     @Override
     public boolean purge() {
         return true;
     }
-
-    private final DeviceUpdateListener mListener = (action) -> {
-        switch (action) {
-            case SmartDevice.EVENT_DISCONNECTED:
-            case SmartDevice.EVENT_CONNECTION_ERROR:
-                setResult(Result.FAILED);
-                finish();
-                break;
-            case SmartDevice.EVENT_SERVICES_DISCOVERED:
-                setResult(Result.OK);
-                finish();
-                break;
-            default:
-                break;
-        }
-    };
 }
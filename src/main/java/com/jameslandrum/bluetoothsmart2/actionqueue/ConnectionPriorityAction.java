@@ -0,0 +1,84 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import android.support.annotation.Nullable;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+import com.jameslandrum.bluetoothsmart2.annotations.LinkProfile;
+
+/**
+ * Requests a connection priority. Android does not report when the new interval takes effect, so the action
+ * completes as soon as the request is accepted.
+ */
+final class ConnectionPriorityAction extends Action {
+    private final int mPriority;
+    private final boolean mFromProfile;
+
+    ConnectionPriorityAction(int priority, @Nullable ResultHandler handler) {
+        super(handler);
+        mPriority = priority;
+        mFromProfile = false;
+    }
+
+    /**
+     * Requests the connection priority of the device class's LinkProfile, if it has one.
+     */
+    ConnectionPriorityAction(@Nullable ResultHandler handler) {
+        super(handler);
+        mPriority = -1;
+        mFromProfile = true;
+    }
+
+    @Override
+    void start(SmartDevice device, ActionHandle handle) {
+        int priority = priorityFor(device);
+        if (priority < 0 || device.getConnectionPriority() == priority) {
+            handle.complete(Result.OK);
+        } else if (!device.isConnected()) {
+            handle.complete(Result.NOT_READY);
+        } else {
+            handle.complete(device.requestConnectionPriority(priority) ? Result.OK : Result.FAILED);
+        }
+    }
+
+    private int priorityFor(SmartDevice device) {
+        if (!mFromProfile) return mPriority;
+        LinkProfile profile = LinkProfiles.of(device);
+        return profile == null ? -1 : profile.connectionPriority();
+    }
+
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
+
+    @Override
+    int getArbitration(SmartDevice device) {
+        int priority = priorityFor(device);
+        return priority < 0 || device.getConnectionPriority() == priority ? GattArbiter.NONE : GattArbiter.OPERATION;
+    }
+
+    @Override
+    boolean appliesTo(SmartDevice device) {
+        return !mFromProfile || LinkProfiles.of(device) != null;
+    }
+
+    @Override
+    public boolean purge() {
+        return true;
+    }
+}
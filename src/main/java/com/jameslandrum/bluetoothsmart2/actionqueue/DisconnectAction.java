@@ -17,48 +17,41 @@
 package com.jameslandrum.bluetoothsmart2.actionqueue;
 
 import android.support.annotation.Nullable;
-import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 final class DisconnectAction extends Action {
     public static final int ERROR_CONNECTION_TIMEOUT = -16;
+    private static final int DISCONNECT_TIMEOUT = 10000;
 
     public DisconnectAction(@Nullable ResultHandler handler) {
         super(handler);
     }
 
     @Override
-    public Result execute(SmartDevice device) {
+    void start(SmartDevice device, ActionHandle handle) {
         if (!device.isReady()) {
-            setResult(Result.OK);
-        } else {
-            device.subscribeToUpdates(mListener);
-            device.disconnect();
-            waitForFinish();
+            handle.complete(Result.OK);
+            return;
         }
-
-        device.unsubscribeToUpdates(mListener);
-        return getResult();
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_DISCONNECTED:
+                    handle.complete(Result.OK);
+                    break;
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                    handle.complete(Result.FAILED);
+                    break;
+                default:
+                    break;
+            }
+        });
+        handle.timeout(DISCONNECT_TIMEOUT);
+        device.disconnect();
     }
 
     @Override
     public boolean purge() {
         return true;
     }
-
-    private final DeviceUpdateListener mListener = (action) -> {
-        switch (action) {
-            case SmartDevice.EVENT_DISCONNECTED:
-                setResult(Result.OK);
-                finish();
-                break;
-            case SmartDevice.EVENT_CONNECTION_ERROR:
-                setResult(Result.FAILED);
-                finish();
-                break;
-            default:
-                break;
-        }
-    };
 }
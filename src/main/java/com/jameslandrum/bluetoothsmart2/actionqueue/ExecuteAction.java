@@ -32,8 +32,8 @@ final class ExecuteAction extends Action {
     }
 
     @Override
-    public Result execute(SmartDevice ignored) {
-        return mExecutor.execute();
+    void start(SmartDevice ignored, ActionHandle handle) {
+        handle.complete(mExecutor.execute());
     }
 
     @Override
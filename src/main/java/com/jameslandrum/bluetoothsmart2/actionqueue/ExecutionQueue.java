@@ -21,6 +21,7 @@ import com.jameslandrum.bluetoothsmart2.Logging;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 /**
  * Represents a queue for an action to be applied to a connected device
@@ -28,20 +29,67 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 @SuppressLint("NewApi")
 public final class ExecutionQueue {
     private ConcurrentLinkedQueue<Action> mPendingActions = new ConcurrentLinkedQueue<>();
+    private volatile boolean mAborted;
 
     public ExecutionQueue(Intention intention) {
         mPendingActions.addAll(intention.getActions());
     }
 
+    /**
+     * Creates a queue for one device, leaving out the actions that never apply to it.
+     */
+    public ExecutionQueue(Intention intention, SmartDevice device) {
+        for (Action action : intention.getActions()) {
+            if (action.appliesTo(device)) mPendingActions.add(action);
+        }
+    }
+
     boolean completed() {
-        return mPendingActions.size() == 0;
+        return mAborted || mPendingActions.isEmpty();
     }
 
-    boolean step(SmartDevice mDevice) {
+    /**
+     * Starts the next action once the GattArbiter grants it a permit, and calls next once it has completed and its
+     * result has been handled. Actions granted a permit after waiting are started through the executor, and results
+     * are always handled on it.
+     */
+    void step(SmartDevice device, Executor executor, Runnable next) {
         Action action = mPendingActions.peek();
-        Action.Result result = action.execute(mDevice);
-        if (action.purge()) mPendingActions.remove(action);
-        Logging.notice("Action %s completed with return code: %s ", action.getClass().getSimpleName(), result);
-        return action.handleResult(result);
+        int kind = action.getArbitration(device);
+        ActionHandle handle = new ActionHandle(device, (h, result) -> {
+            if (kind != GattArbiter.NONE) GattArbiter.getInstance().release(kind);
+            if (action.purge()) mPendingActions.remove(action);
+            // Completion arrives on binder and timer threads; result handlers run on the lane's executor instead.
+            executor.execute(() -> {
+                try {
+                    Logging.notice("Action %s completed with return code: %s after queueing %d ms",
+                            action.getClass().getSimpleName(), result, h.getQueueDelay());
+                    if (!action.handleResult(result)) mAborted = true;
+                } catch (RuntimeException e) {
+                    Logging.error("Result handler of %s failed: %s", action.getClass().getSimpleName(), e);
+                    mAborted = true;
+                } finally {
+                    next.run();
+                }
+            });
+        });
+
+        if (kind == GattArbiter.NONE || GattArbiter.getInstance().acquire(kind, device, delay -> {
+            handle.setQueueDelay(delay);
+            executor.execute(() -> start(action, device, handle, kind));
+        })) {
+            start(action, device, handle, kind);
+        }
+    }
+
+    private static void start(Action action, SmartDevice device, ActionHandle handle, int kind) {
+        // Operations hold a process wide permit, which a dropped link must give back whatever the action awaits.
+        if (kind == GattArbiter.OPERATION) handle.failOnDisconnect();
+        try {
+            action.start(device, handle);
+        } catch (RuntimeException e) {
+            Logging.error("Action %s failed to start: %s", action.getClass().getSimpleName(), e);
+            handle.complete(Action.Result.UNKNOWN);
+        }
     }
 }
@@ -0,0 +1,265 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import com.jameslandrum.bluetoothsmart2.ListenerList;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+
+/**
+ * Process wide limit on outstanding connection attempts and GATT operations, shared by every device.
+ *
+ * Actions wait here for a permit before they start, and give it back when they complete. When devices are waiting,
+ * permits go to them in weighted round robin order: each device has a priority, and a device with priority 3 is
+ * granted three permits for every one granted to a device with priority 1 while both are waiting. The time each
+ * action spent waiting is reported to queue delay listeners and kept as per-kind statistics.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class GattArbiter {
+    @IntDef({NONE, CONNECT, OPERATION})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Kind {}
+    public static final int NONE = 0;
+    public static final int CONNECT = 1;
+    public static final int OPERATION = 2;
+
+    public static final int DEFAULT_MAX_CONNECTING = 1;
+    public static final int DEFAULT_MAX_OPERATIONS = 4;
+    public static final int DEFAULT_PRIORITY = 1;
+    private static final long STRIDE = 1 << 20;
+
+    private static final GattArbiter mInstance = new GattArbiter();
+
+    /**
+     * Receives how long each action waited for its permit.
+     */
+    public interface QueueDelayListener {
+        void onQueueDelay(SmartDevice device, @Kind int kind, long delay);
+    }
+
+    interface Grant {
+        void onGranted(long delay);
+    }
+
+    private static final ListenerList.Delivery<QueueDelayListener, Waiter> QUEUE_DELAY =
+            (listener, kind, waiter) -> listener.onQueueDelay(waiter.mDevice, kind, waiter.mDelay);
+
+    private final Pool mConnecting = new Pool(DEFAULT_MAX_CONNECTING);
+    private final Pool mOperations = new Pool(DEFAULT_MAX_OPERATIONS);
+    private final WeakHashMap<SmartDevice, DeviceState> mDevices = new WeakHashMap<>();   // Guarded by this
+    private final ListenerList<QueueDelayListener> mDelayListeners = new ListenerList<>();
+    private long mPass;     // Pass of the most recent grant, guarded by this
+
+    private static final class DeviceState {
+        int mPriority = DEFAULT_PRIORITY;
+        long mPass;
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final SmartDevice mDevice;
+        final Grant mGrant;
+        final long mQueuedAt;
+        final long mPass;
+        final long mSequence;
+        long mDelay;
+
+        Waiter(SmartDevice device, Grant grant, long queuedAt, long pass, long sequence) {
+            mDevice = device;
+            mGrant = grant;
+            mQueuedAt = queuedAt;
+            mPass = pass;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (mPass != other.mPass) return mPass < other.mPass ? -1 : 1;
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private static final class Pool {
+        final PriorityQueue<Waiter> mWaiting = new PriorityQueue<>();
+        int mLimit;
+        int mInUse;
+        long mSequence;
+        long mGranted;
+        long mTotalDelay;
+        long mMaxDelay;
+
+        Pool(int limit) {
+            mLimit = limit;
+        }
+    }
+
+    private GattArbiter() {
+    }
+
+    public static GattArbiter getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Sets how many connection attempts may be outstanding at once.
+     */
+    public void setMaxConnecting(int max) {
+        setLimit(mConnecting, max);
+    }
+
+    /**
+     * Sets how many reads, writes and descriptor writes may be in flight at once, across all devices.
+     */
+    public void setMaxOperations(int max) {
+        setLimit(mOperations, max);
+    }
+
+    /**
+     * Sets the share of permits a device gets while other devices are also waiting.
+     * @param priority The device's weight, at least 1. Devices start with DEFAULT_PRIORITY.
+     */
+    public synchronized void setPriority(SmartDevice device, int priority) {
+        if (priority < 1) throw new IllegalArgumentException("Priority must be at least 1.");
+        stateOf(device).mPriority = priority;
+    }
+
+    public void addQueueDelayListener(QueueDelayListener listener) {
+        mDelayListeners.add(listener);
+    }
+
+    public void removeQueueDelayListener(QueueDelayListener listener) {
+        mDelayListeners.remove(listener);
+    }
+
+    /**
+     * @return The number of actions of a kind waiting for a permit.
+     */
+    public synchronized int getWaitingCount(@Kind int kind) {
+        return poolFor(kind).mWaiting.size();
+    }
+
+    /**
+     * @return The average time actions of a kind waited for a permit, in milliseconds.
+     */
+    public synchronized long getAverageQueueDelay(@Kind int kind) {
+        Pool pool = poolFor(kind);
+        return pool.mGranted == 0 ? 0 : pool.mTotalDelay / pool.mGranted;
+    }
+
+    /**
+     * @return The longest time an action of a kind waited for a permit, in milliseconds.
+     */
+    public synchronized long getMaxQueueDelay(@Kind int kind) {
+        return poolFor(kind).mMaxDelay;
+    }
+
+    /**
+     * Takes a permit, or queues for one.
+     * @return true if the permit was taken right away. Otherwise the grant is called once the permit is held, on
+     *         the thread that released it.
+     */
+    boolean acquire(@Kind int kind, SmartDevice device, Grant grant) {
+        Waiter granted = null;
+        synchronized (this) {
+            Pool pool = poolFor(kind);
+            DeviceState state = stateOf(device);
+            // A device that sat idle keeps at most one round of credit, rather than everything it missed.
+            long pass = Math.max(state.mPass, mPass - STRIDE);
+            pool.mWaiting.add(new Waiter(device, grant, SystemClock.elapsedRealtime(), pass, pool.mSequence++));
+            // Permits are only free while nobody is waiting, so this grants the waiter just added.
+            if (pool.mInUse < pool.mLimit) granted = next(pool);
+        }
+        if (granted == null) return false;
+        if (!mDelayListeners.isEmpty()) mDelayListeners.dispatch(QUEUE_DELAY, kind, granted);
+        return true;
+    }
+
+    /**
+     * Returns a permit, granting it to the next waiting device.
+     */
+    void release(@Kind int kind) {
+        Waiter granted;
+        synchronized (this) {
+            Pool pool = poolFor(kind);
+            pool.mInUse--;
+            granted = next(pool);
+        }
+        if (granted != null) notifyGranted(kind, granted);
+    }
+
+    private void setLimit(Pool pool, int max) {
+        if (max < 1) throw new IllegalArgumentException("At least one permit is required.");
+        int kind = pool == mConnecting ? CONNECT : OPERATION;
+        while (true) {
+            Waiter granted;
+            synchronized (this) {
+                pool.mLimit = max;
+                if (pool.mInUse >= pool.mLimit) return;
+                granted = next(pool);
+            }
+            if (granted == null) return;
+            notifyGranted(kind, granted);
+        }
+    }
+
+    // Takes a permit for the waiter with the lowest pass, if any. Must hold the lock.
+    private Waiter next(Pool pool) {
+        Waiter waiter = pool.mWaiting.poll();
+        if (waiter == null) return null;
+        pool.mInUse++;
+
+        DeviceState state = stateOf(waiter.mDevice);
+        mPass = waiter.mPass;
+        state.mPass = waiter.mPass + STRIDE / state.mPriority;
+
+        waiter.mDelay = SystemClock.elapsedRealtime() - waiter.mQueuedAt;
+        pool.mGranted++;
+        pool.mTotalDelay += waiter.mDelay;
+        pool.mMaxDelay = Math.max(pool.mMaxDelay, waiter.mDelay);
+        return waiter;
+    }
+
+    private void notifyGranted(int kind, Waiter waiter) {
+        if (!mDelayListeners.isEmpty()) mDelayListeners.dispatch(QUEUE_DELAY, kind, waiter);
+        waiter.mGrant.onGranted(waiter.mDelay);
+    }
+
+    private DeviceState stateOf(SmartDevice device) {
+        DeviceState state = mDevices.get(device);
+        if (state == null) {
+            state = new DeviceState();
+            mDevices.put(device, state);
+        }
+        return state;
+    }
+
+    private Pool poolFor(int kind) {
+        switch (kind) {
+            case CONNECT:
+                return mConnecting;
+            case OPERATION:
+                return mOperations;
+            default:
+                throw new IllegalArgumentException("Unknown arbitration kind " + kind);
+        }
+    }
+}
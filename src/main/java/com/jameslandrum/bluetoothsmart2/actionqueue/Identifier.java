@@ -19,15 +19,31 @@ package com.jameslandrum.bluetoothsmart2.actionqueue;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 import com.jameslandrum.bluetoothsmart2.Utils;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.UUID;
 
 @SuppressWarnings("ALL")
 public final class Identifier {
+    public static final int NO_MANUFACTURER = -1;
+    public static final int UNSET = -1;
+
     private String mName;
     private ArrayList<UUID> mUuids = new ArrayList<>();
     private ByteId mByteId;
+    private int mManufacturerId = NO_MANUFACTURER;
+    private byte[] mManufacturerData;
+    private byte[] mManufacturerDataMask;
+    private UUID mServiceDataUuid;
+    private byte[] mServiceData;
+    private byte[] mServiceDataMask;
+    private int mRssiDelta = UNSET;
+    private long mMinUpdateInterval = UNSET;
+    private long mStaleTimeout = UNSET;
     private Class<? extends SmartDevice> mClass;
+    private DeviceFactory mFactory;
 
     private Identifier(Class<? extends SmartDevice> klass) {
      this.mClass = klass;
@@ -45,6 +61,107 @@ public final class Identifier {
         return mByteId;
     }
 
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * @return The manufacturer data that must prefix the advertised manufacturer data, or null.
+     */
+    public byte[] getManufacturerData() {
+        return mManufacturerData;
+    }
+
+    /**
+     * @return The mask applied to the manufacturer data before comparing, or null to compare every bit.
+     */
+    public byte[] getManufacturerDataMask() {
+        return mManufacturerDataMask;
+    }
+
+    public UUID getServiceDataUuid() {
+        return mServiceDataUuid;
+    }
+
+    /**
+     * @return The service data that must prefix the advertised service data, or null.
+     */
+    public byte[] getServiceData() {
+        return mServiceData;
+    }
+
+    /**
+     * @return The mask applied to the service data before comparing, or null to compare every bit.
+     */
+    public byte[] getServiceDataMask() {
+        return mServiceDataMask;
+    }
+
+    /**
+     * Whether this identifier declares anything the Bluetooth controller can filter on. Identifiers that only
+     * use a ByteId must be evaluated for every advertisement in range.
+     */
+    public boolean isOffloadable() {
+        return !mUuids.isEmpty() || mName != null || mManufacturerId != NO_MANUFACTURER || mServiceDataUuid != null;
+    }
+
+    /**
+     * @return The RSSI change, in dBm, that is reported to scan listeners even if the advertisement is
+     *         unchanged, or UNSET to use the scanner default.
+     */
+    public int getRssiDelta() {
+        return mRssiDelta;
+    }
+
+    /**
+     * @return The minimum time, in milliseconds, between updates reported to scan listeners for one device,
+     *         or UNSET to use the scanner default.
+     */
+    public long getMinUpdateInterval() {
+        return mMinUpdateInterval;
+    }
+
+    /**
+     * @return How long, in milliseconds, a matched device may go unseen before it is forgotten, or UNSET to use
+     * the scanner default.
+     */
+    public long getStaleTimeout() {
+        return mStaleTimeout;
+    }
+
+    /**
+     * Returns the factory that creates devices matched by this identifier. Unless one was given to the
+     * builder, the device class's no-argument constructor is resolved once and reused.
+     * @throws IllegalArgumentException If no factory was given and the device class can not be instantiated.
+     */
+    public DeviceFactory getFactory() {
+        if (mFactory == null) mFactory = constructorFactory(mClass);
+        return mFactory;
+    }
+
+    private static DeviceFactory constructorFactory(Class<? extends SmartDevice> klass) {
+        if (Modifier.isAbstract(klass.getModifiers())) {
+            throw new IllegalArgumentException(klass.getName() + " is abstract.");
+        }
+        final Constructor<? extends SmartDevice> constructor;
+        try {
+            constructor = klass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(klass.getName() + " has no no-argument constructor; " +
+                    "give the identifier a factory instead.");
+        }
+        return () -> {
+            try {
+                return constructor.newInstance();
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause());
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
     public Class<? extends SmartDevice>  getDeviceClass() {
         return mClass;
     }
@@ -56,17 +173,112 @@ public final class Identifier {
             identifier = new Identifier(klass);
         }
 
+        /**
+         * Requires the device to be named the given name, either in its advertised local name or in the name the
+         * platform has cached for it. When filtering is offloaded to the Bluetooth controller, only the advertised
+         * local name is matched, so devices that are only known by their cached name are not delivered.
+         * @param name The device name.
+         * @return The builder.
+         */
         public Builder name(String name) {
             identifier.mName = name;
             return this;
         }
 
+        /**
+         * Requires the advertisement to list the given service UUID. May be called more than once to require
+         * several services; when filtering is offloaded to the Bluetooth controller only the first is filtered
+         * there, and the rest are checked in software.
+         * @param uuid A 16-bit, 32-bit or 128-bit UUID string.
+         * @return The builder.
+         */
         @SuppressWarnings("SameParameterValue")
         public Builder uuid(String uuid) {
             identifier.mUuids.add(Utils.uuidFromString(uuid));
             return this;
         }
 
+        /**
+         * Requires the advertisement to carry manufacturer specific data from the given company.
+         * @param companyId The Bluetooth SIG assigned company identifier.
+         * @return The builder.
+         */
+        public Builder manufacturerId(int companyId) {
+            identifier.mManufacturerId = companyId & 0xFFFF;
+            return this;
+        }
+
+        /**
+         * Requires the advertisement to carry manufacturer data from the given company that starts with the
+         * given bytes, after applying the mask. Unlike a ByteId, this can be filtered by the Bluetooth controller.
+         * @param companyId The Bluetooth SIG assigned company identifier.
+         * @param data The expected leading bytes of the manufacturer data, excluding the company identifier.
+         * @param mask The bits of data to compare, or null to compare every bit. Must be as long as data.
+         * @return The builder.
+         */
+        public Builder manufacturerData(int companyId, byte[] data, byte[] mask) {
+            if (mask != null && mask.length != data.length) {
+                throw new IllegalArgumentException("Mask must be the same length as the data.");
+            }
+            identifier.mManufacturerId = companyId & 0xFFFF;
+            identifier.mManufacturerData = data;
+            identifier.mManufacturerDataMask = mask;
+            return this;
+        }
+
+        /**
+         * Requires the advertisement to carry service data for the given service that starts with the given
+         * bytes, after applying the mask. Unlike a ByteId, this can be filtered by the Bluetooth controller.
+         * @param uuid The 16, 32 or 128-bit service UUID.
+         * @param data The expected leading bytes of the service data.
+         * @param mask The bits of data to compare, or null to compare every bit. Must be as long as data.
+         * @return The builder.
+         */
+        public Builder serviceData(String uuid, byte[] data, byte[] mask) {
+            if (mask != null && mask.length != data.length) {
+                throw new IllegalArgumentException("Mask must be the same length as the data.");
+            }
+            identifier.mServiceDataUuid = Utils.uuidFromString(uuid);
+            identifier.mServiceData = data;
+            identifier.mServiceDataMask = mask;
+            return this;
+        }
+
+        /**
+         * Controls which advertisements from matched devices are reported as DEVICE_UPDATED.
+         * An advertisement is reported if its payload changed, or its RSSI moved by at least rssiDelta
+         * since the last reported advertisement, and at least minInterval has passed since that report.
+         * @param rssiDelta The RSSI change in dBm that is worth reporting on its own.
+         * @param minInterval The minimum time between reports, in milliseconds.
+         * @return The builder.
+         */
+        public Builder updateFilter(int rssiDelta, long minInterval) {
+            identifier.mRssiDelta = rssiDelta;
+            identifier.mMinUpdateInterval = minInterval;
+            return this;
+        }
+
+        /**
+         * Forgets matched devices once they have not been seen for the given time.
+         * @param timeout The timeout in milliseconds, or 0 to never forget matched devices automatically.
+         * @return The builder.
+         */
+        public Builder staleTimeout(long timeout) {
+            identifier.mStaleTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * Creates matched devices with the given factory, such as a constructor reference, instead of
+         * through reflection.
+         * @param factory The factory.
+         * @return The builder.
+         */
+        public Builder factory(DeviceFactory factory) {
+            identifier.mFactory = factory;
+            return this;
+        }
+
         public Builder byteId(ByteId byteId) {
             identifier.mByteId = byteId;
             return this;
@@ -80,4 +292,8 @@ public final class Identifier {
     public interface ByteId {
         boolean checkBytes(byte[] data);
     }
+
+    public interface DeviceFactory {
+        SmartDevice create();
+    }
 }
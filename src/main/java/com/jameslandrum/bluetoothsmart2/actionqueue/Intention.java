@@ -21,7 +21,10 @@ import android.support.annotation.Nullable;
 import com.jameslandrum.bluetoothsmart2.SmartDeviceManager;
 import com.jameslandrum.bluetoothsmart2.annotations.Sequential;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Intention are descriptors for the series of actions that are to be taken on a Bluetooth device.
@@ -30,6 +33,9 @@ import java.util.ArrayList;
  * even if the two devices are manufactured by separate entities.
  */
 public final class Intention {
+    private static final int LINK_PROFILE_TIMEOUT = 5000;
+    private static final ResultHandler BEST_EFFORT = result -> true;
+
     private ArrayList<Action> mActions = new ArrayList<>();     // The list of actions to be taken.
 
     /**
@@ -56,12 +62,63 @@ public final class Intention {
         }
 
         /**
-         * Connects to the target device.
+         * Connects to the target device, then applies the device class's LinkProfile if it has one.
+         * Link settings the device or platform does not support are skipped without failing the intention.
+         * Devices without a LinkProfile only run the connect, and settings already in effect take no GATT permit.
          * @param resultHandler An optional handler to be called once the action completes or fails.
          * @return The builder.
          */
         public Builder connect(@Nullable ResultHandler resultHandler) {
-            mIntentions.mActions.add(0,new ConnectAction(SmartDeviceManager.getActiveContext(), resultHandler));
+            mIntentions.mActions.addAll(0, Arrays.asList(
+                    new ConnectAction(SmartDeviceManager.getActiveContext(), resultHandler),
+                    new RequestMtuAction(LINK_PROFILE_TIMEOUT, BEST_EFFORT),
+                    new ConnectionPriorityAction(BEST_EFFORT),
+                    new PreferredPhyAction(LINK_PROFILE_TIMEOUT, BEST_EFFORT)));
+            return this;
+        }
+
+        /**
+         * Requests a larger ATT MTU, so each packet carries more data. Requires Android 5.0.
+         * The negotiated value is available from SmartDevice.getMtu(), and is used by streamCharacteristic.
+         * @param mtu The MTU to request, up to 517.
+         * @param timeout How long before the action should be cancelled and a timeout error thrown.
+         *                Use -1 to wait indefinitely.
+         * @param resultHandler An optional handler to be called once the action completes or fails.
+         * @return The builder.
+         */
+        @Sequential
+        public Builder requestMtu(int mtu, int timeout, @Nullable ResultHandler resultHandler) {
+            mIntentions.mActions.add(new RequestMtuAction(mtu, timeout, resultHandler));
+            return this;
+        }
+
+        /**
+         * Requests a connection priority, trading power for a shorter connection interval. Requires Android 5.0.
+         * @param priority The BluetoothGatt CONNECTION_PRIORITY_* to request.
+         * @param resultHandler An optional handler to be called once the action completes or fails.
+         * @return The builder.
+         */
+        @Sequential
+        public Builder requestConnectionPriority(int priority, @Nullable ResultHandler resultHandler) {
+            mIntentions.mActions.add(new ConnectionPriorityAction(priority, resultHandler));
+            return this;
+        }
+
+        /**
+         * Sets the preferred PHYs of the connection, such as the 2M PHY for throughput. Requires Android 8.0.
+         * The negotiated values are available from SmartDevice.getTxPhy() and getRxPhy().
+         * @param txPhy A mask of BluetoothDevice PHY_LE_*_MASK values to transmit on.
+         * @param rxPhy A mask of BluetoothDevice PHY_LE_*_MASK values to receive on.
+         * @param phyOptions The BluetoothDevice PHY_OPTION_* for the coded PHY.
+         * @param timeout How long before the action should be cancelled and a timeout error thrown.
+         *                Use -1 to wait indefinitely.
+         * @param resultHandler An optional handler to be called once the action completes or fails.
+         * @return The builder.
+         */
+        @Sequential
+        public Builder setPreferredPhy(int txPhy, int rxPhy, int phyOptions, int timeout,
+                                       @Nullable ResultHandler resultHandler) {
+            mIntentions.mActions.add(new PreferredPhyAction(txPhy, rxPhy, phyOptions, timeout, resultHandler));
             return this;
         }
 
@@ -100,6 +157,63 @@ public final class Intention {
             return this;
         }
 
+        /**
+         * Streams a payload of any size to a characteristic, split into write without response packets as large
+         * as the connection's MTU allows. Much faster than one changeCharacteristic per packet for uploads.
+         * @param characteristicId The identifier for the characteristic, defined by @DeviceParameters
+         * @param timeout How long the transfer may go without progress before it is cancelled and a timeout error
+         *                thrown. Use -1 to wait indefinitely.
+         * @param resultHandler An optional handler to be called once the action completes or fails.
+         * @param listener An optional listener for the number of bytes sent and the transfer rate.
+         * @param data The byte data to write
+         * @return The builder.
+         */
+        @Sequential
+        public Builder streamCharacteristic(int characteristicId, int timeout, @Nullable ResultHandler resultHandler,
+                                            @Nullable StreamListener listener, byte[] data) {
+            return streamCharacteristic(characteristicId, timeout, resultHandler, listener, ByteBuffer.wrap(data));
+        }
+
+        /**
+         * Streams the remaining bytes of a buffer to a characteristic, split into write without response packets as
+         * large as the connection's MTU allows. The buffer's position is left unchanged, so the intention can be
+         * issued again.
+         * @param characteristicId The identifier for the characteristic, defined by @DeviceParameters
+         * @param timeout How long the transfer may go without progress before it is cancelled and a timeout error
+         *                thrown. Use -1 to wait indefinitely.
+         * @param resultHandler An optional handler to be called once the action completes or fails.
+         * @param listener An optional listener for the number of bytes sent and the transfer rate.
+         * @param data The byte data to write
+         * @return The builder.
+         */
+        @Sequential
+        public Builder streamCharacteristic(int characteristicId, int timeout, @Nullable ResultHandler resultHandler,
+                                            @Nullable StreamListener listener, ByteBuffer data) {
+            mIntentions.mActions.add(new StreamWriteAction(characteristicId, timeout, resultHandler, listener, data));
+            return this;
+        }
+
+        /**
+         * Streams the contents of an input stream to a characteristic, split into write without response packets as
+         * large as the connection's MTU allows. The stream is read once, from the thread delivering Bluetooth
+         * callbacks, and is not closed. As it cannot be read again, only the first run of the intention sends it;
+         * running the intention again, or on another device, fails the action. Use a ByteBuffer for payloads that
+         * are sent more than once.
+         * @param characteristicId The identifier for the characteristic, defined by @DeviceParameters
+         * @param timeout How long the transfer may go without progress before it is cancelled and a timeout error
+         *                thrown. Use -1 to wait indefinitely.
+         * @param resultHandler An optional handler to be called once the action completes or fails.
+         * @param listener An optional listener for the number of bytes sent and the transfer rate.
+         * @param stream The data to write
+         * @return The builder.
+         */
+        @Sequential
+        public Builder streamCharacteristic(int characteristicId, int timeout, @Nullable ResultHandler resultHandler,
+                                            @Nullable StreamListener listener, InputStream stream) {
+            mIntentions.mActions.add(new StreamWriteAction(characteristicId, timeout, resultHandler, listener, stream));
+            return this;
+        }
+
         /**
          * Reads the value of a characteristic with a given invoke handler to allow errors to be ignored or otherwise
          * resolved.
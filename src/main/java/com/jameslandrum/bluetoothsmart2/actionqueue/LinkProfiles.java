@@ -0,0 +1,48 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+import com.jameslandrum.bluetoothsmart2.annotations.LinkProfile;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The LinkProfile of each device class, looked up once per class rather than on every connect.
+ */
+final class LinkProfiles {
+    private static final Object NO_PROFILE = new Object();
+    private static final ConcurrentHashMap<Class<?>, Object> mProfiles = new ConcurrentHashMap<>();
+
+    private LinkProfiles() {
+    }
+
+    /**
+     * @return The LinkProfile of the device's class, or null if it has none.
+     */
+    static LinkProfile of(SmartDevice device) {
+        Class<?> klass = device.getClass();
+        Object profile = mProfiles.get(klass);
+        if (profile == null) {
+            LinkProfile annotation = klass.getAnnotation(LinkProfile.class);
+            profile = annotation == null ? NO_PROFILE : annotation;
+            Object existing = mProfiles.putIfAbsent(klass, profile);
+            if (existing != null) profile = existing;
+        }
+        return profile == NO_PROFILE ? null : (LinkProfile) profile;
+    }
+}
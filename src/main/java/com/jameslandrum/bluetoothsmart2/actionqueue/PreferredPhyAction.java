@@ -0,0 +1,121 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import android.support.annotation.Nullable;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+import com.jameslandrum.bluetoothsmart2.annotations.LinkProfile;
+
+final class PreferredPhyAction extends Action {
+    private final int mTxPhy;
+    private final int mRxPhy;
+    private final int mPhyOptions;
+    private final int mTimeout;
+    private final boolean mFromProfile;
+
+    PreferredPhyAction(int txPhy, int rxPhy, int phyOptions, int timeout, @Nullable ResultHandler handler) {
+        super(handler);
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+        mPhyOptions = phyOptions;
+        mTimeout = timeout;
+        mFromProfile = false;
+    }
+
+    /**
+     * Sets the preferred PHYs of the device class's LinkProfile, if it has one.
+     */
+    PreferredPhyAction(int timeout, @Nullable ResultHandler handler) {
+        super(handler);
+        mTxPhy = 0;
+        mRxPhy = 0;
+        mPhyOptions = 0;
+        mTimeout = timeout;
+        mFromProfile = true;
+    }
+
+    @Override
+    void start(SmartDevice device, ActionHandle handle) {
+        int txPhy = mTxPhy;
+        int rxPhy = mRxPhy;
+        int phyOptions = mPhyOptions;
+        if (mFromProfile) {
+            LinkProfile profile = LinkProfiles.of(device);
+            if (profile != null) {
+                txPhy = profile.txPhy();
+                rxPhy = profile.rxPhy();
+                phyOptions = profile.phyOptions();
+            }
+        }
+        if (satisfied(device, txPhy, rxPhy)) {
+            handle.complete(Result.OK);
+            return;
+        }
+        if (!device.isConnected()) {
+            handle.complete(Result.NOT_READY);
+            return;
+        }
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_PHY_UPDATED:
+                    handle.complete(Result.OK);
+                    break;
+                case SmartDevice.EVENT_PHY_UPDATE_FAILURE:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                case SmartDevice.EVENT_DISCONNECTED:
+                    handle.complete(Result.FAILED);
+                    break;
+                default:
+                    break;
+            }
+        });
+        handle.timeout(mTimeout);
+        if (!device.setPreferredPhy(txPhy, rxPhy, phyOptions)) handle.complete(Result.FAILED);
+    }
+
+    private static boolean satisfied(SmartDevice device, int txPhy, int rxPhy) {
+        return txPhy == 0 && rxPhy == 0 || inMask(device.getTxPhy(), txPhy) && inMask(device.getRxPhy(), rxPhy);
+    }
+
+    // PHY_LE_1M, PHY_LE_2M and PHY_LE_CODED are 1, 2 and 3; their masks are 1, 2 and 4. An empty mask is no preference.
+    private static boolean inMask(int phy, int mask) {
+        return mask == 0 || (mask & (1 << (phy - 1))) != 0;
+    }
+
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
+
+    @Override
+    int getArbitration(SmartDevice device) {
+        if (!mFromProfile) return satisfied(device, mTxPhy, mRxPhy) ? GattArbiter.NONE : GattArbiter.OPERATION;
+        LinkProfile profile = LinkProfiles.of(device);
+        return profile == null || satisfied(device, profile.txPhy(), profile.rxPhy())
+                ? GattArbiter.NONE : GattArbiter.OPERATION;
+    }
+
+    @Override
+    boolean appliesTo(SmartDevice device) {
+        return !mFromProfile || LinkProfiles.of(device) != null;
+    }
+
+    @Override
+    public boolean purge() {
+        return true;
+    }
+}
@@ -19,7 +19,6 @@ package com.jameslandrum.bluetoothsmart2.actionqueue;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.support.annotation.Nullable;
 import com.jameslandrum.bluetoothsmart2.Characteristic;
-import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
 final class ReadCharacteristicAction extends Action {
@@ -33,45 +32,43 @@ final class ReadCharacteristicAction extends Action {
     }
 
     @Override
-    public Result execute(SmartDevice device) {
+    void start(SmartDevice device, ActionHandle handle) {
         if (!device.isReady()) {
-            setResult(Result.NOT_READY);
-        } else {
-            device.subscribeToUpdates(mListener);
-
-            try {
-                Characteristic characteristic = device.getCharacteristic(mCharId);
-                BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
-                device.getActiveConnection().readCharacteristic(gattCharacteristic);
-                waitForFinish(mWait);
-            } catch (Exception e) {
-                setResult(Result.UNKNOWN);
-            }
+            handle.complete(Result.NOT_READY);
+            return;
         }
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_SECURITY_FAILURE:
+                    handle.complete(Result.BONDING_REQUIRED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_READ_FAILURE:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                case SmartDevice.EVENT_DISCONNECTED:
+                    handle.complete(Result.FAILED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_READ:
+                    handle.complete(Result.OK);
+                    break;
+                default:
+                    break;
+            }
+        });
+        handle.timeout(mWait);
 
-        device.unsubscribeToUpdates(mListener);
-        return getResult();
+        try {
+            Characteristic characteristic = device.getCharacteristic(mCharId);
+            BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
+            if (!device.getActiveConnection().readCharacteristic(gattCharacteristic)) handle.complete(Result.FAILED);
+        } catch (Exception e) {
+            handle.complete(Result.UNKNOWN);
+        }
     }
 
-    private final DeviceUpdateListener mListener = (action) -> {
-        switch (action) {
-            case SmartDevice.EVENT_SECURITY_FAILURE:
-                setResult(Result.BONDING_REQUIRED);
-                finish();
-                break;
-            case SmartDevice.EVENT_CHARACTERISTIC_READ_FAILURE:
-            case SmartDevice.EVENT_CONNECTION_ERROR:
-                setResult(Result.FAILED);
-                finish();
-                break;
-            case SmartDevice.EVENT_CHARACTERISTIC_READ:
-                setResult(Result.OK);
-                finish();
-                break;
-            default:
-                break;
-        }
-    };
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
 
     @Override
     public boolean purge() {
@@ -0,0 +1,100 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import android.support.annotation.Nullable;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+import com.jameslandrum.bluetoothsmart2.annotations.LinkProfile;
+
+final class RequestMtuAction extends Action {
+    private final int mMtu;
+    private final int mTimeout;
+    private final boolean mFromProfile;
+
+    RequestMtuAction(int mtu, int timeout, @Nullable ResultHandler handler) {
+        super(handler);
+        mMtu = mtu;
+        mTimeout = timeout;
+        mFromProfile = false;
+    }
+
+    /**
+     * Requests the MTU of the device class's LinkProfile, if it has one.
+     */
+    RequestMtuAction(int timeout, @Nullable ResultHandler handler) {
+        super(handler);
+        mMtu = 0;
+        mTimeout = timeout;
+        mFromProfile = true;
+    }
+
+    @Override
+    void start(SmartDevice device, ActionHandle handle) {
+        int mtu = mtuFor(device);
+        if (mtu <= 0 || device.getMtu() == mtu) {
+            handle.complete(Result.OK);
+            return;
+        }
+        if (!device.isConnected()) {
+            handle.complete(Result.NOT_READY);
+            return;
+        }
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_MTU_CHANGED:
+                    handle.complete(Result.OK);
+                    break;
+                case SmartDevice.EVENT_MTU_CHANGE_FAILURE:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                case SmartDevice.EVENT_DISCONNECTED:
+                    handle.complete(Result.FAILED);
+                    break;
+                default:
+                    break;
+            }
+        });
+        handle.timeout(mTimeout);
+        if (!device.requestMtu(mtu)) handle.complete(Result.FAILED);
+    }
+
+    private int mtuFor(SmartDevice device) {
+        if (!mFromProfile) return mMtu;
+        LinkProfile profile = LinkProfiles.of(device);
+        return profile == null ? 0 : profile.mtu();
+    }
+
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
+
+    @Override
+    int getArbitration(SmartDevice device) {
+        int mtu = mtuFor(device);
+        return mtu <= 0 || device.getMtu() == mtu ? GattArbiter.NONE : GattArbiter.OPERATION;
+    }
+
+    @Override
+    boolean appliesTo(SmartDevice device) {
+        return !mFromProfile || LinkProfiles.of(device) != null;
+    }
+
+    @Override
+    public boolean purge() {
+        return true;
+    }
+}
@@ -16,10 +16,11 @@
 
 package com.jameslandrum.bluetoothsmart2.actionqueue;
 
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import com.jameslandrum.bluetoothsmart2.Characteristic;
-import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
+import com.jameslandrum.bluetoothsmart2.Logging;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
 final class SetNotificationAction extends Action {
@@ -39,58 +40,56 @@ final class SetNotificationAction extends Action {
     }
 
     @Override
-    public Result execute(SmartDevice device) {
-        Characteristic characteristic = null;
-
+    void start(SmartDevice device, ActionHandle handle) {
         if (!device.isReady()) {
-            setResult(Result.NOT_READY);
-        } else {
-            device.subscribeToUpdates(mListener);
-            try {
-                characteristic = device.getCharacteristic(mCharId);
-                BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
-                BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptors().get(mDescriptorId);
-                descriptor.setValue( mEnable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE );
-                device.getActiveConnection().writeDescriptor(descriptor);
-                waitForFinish(mTimeout);
-            } catch (Exception e) {
-                e.printStackTrace();
-                setResult(Result.UNKNOWN);
-            }
-
-            device.unsubscribeToUpdates(mListener);
+            handle.complete(Result.NOT_READY);
+            return;
         }
-
-        Result result = getResult();
-        if (result == Result.OK && characteristic != null) {
-            device.getActiveConnection().setCharacteristicNotification(characteristic.getNativeCharacteristic(), mEnable);
-            if (mEnable) {
-                device.addNotificationListener(mCharId, mNotifyCallback);
-            } else {
-                device.removeNotificationListener(mCharId, mNotifyCallback);
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_CHARACTERISTIC_WRITE_FAILURE:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                case SmartDevice.EVENT_DISCONNECTED:
+                    handle.complete(Result.FAILED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_WRITTEN:
+                    if (handle.isDone()) break;
+                    Characteristic characteristic = device.getCharacteristic(mCharId);
+                    BluetoothGatt gatt = device.getActiveConnection();
+                    if (characteristic == null || gatt == null) {
+                        handle.complete(Result.FAILED);
+                        break;
+                    }
+                    gatt.setCharacteristicNotification(characteristic.getNativeCharacteristic(), mEnable);
+                    if (mEnable) {
+                        device.addNotificationListener(mCharId, mNotifyCallback);
+                    } else {
+                        device.removeNotificationListener(mCharId, mNotifyCallback);
+                    }
+                    handle.complete(Result.OK);
+                    break;
+                default:
+                    break;
             }
-        } else {
-            setResult(Result.FAILED);
-        }
+        });
+        handle.timeout(mTimeout);
 
-        return result;
+        try {
+            Characteristic characteristic = device.getCharacteristic(mCharId);
+            BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
+            BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptors().get(mDescriptorId);
+            descriptor.setValue( mEnable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE );
+            if (!device.getActiveConnection().writeDescriptor(descriptor)) handle.complete(Result.FAILED);
+        } catch (Exception e) {
+            Logging.error("Notification setup error: %s", e);
+            handle.complete(Result.UNKNOWN);
+        }
     }
 
-    private final DeviceUpdateListener mListener = (action) -> {
-        switch (action) {
-            case SmartDevice.EVENT_CHARACTERISTIC_WRITE_FAILURE:
-            case SmartDevice.EVENT_CONNECTION_ERROR:
-                setResult(Result.FAILED);
-                finish();
-                break;
-            case SmartDevice.EVENT_CHARACTERISTIC_WRITTEN:
-                setResult(Result.OK);
-                finish();
-                break;
-            default:
-                break;
-        }
-    };
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
 
     @Override
     public boolean purge() {
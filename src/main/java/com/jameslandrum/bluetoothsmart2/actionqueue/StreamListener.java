@@ -0,0 +1,29 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+/**
+ * Reports the progress of a streaming write, at most a few times a second and once more when it finishes.
+ */
+public interface StreamListener {
+    /**
+     * @param sent The number of bytes the Bluetooth stack has accepted so far.
+     * @param total The size of the payload, or -1 if it is read from a stream of unknown length.
+     * @param bytesPerSecond The average rate since the transfer started.
+     */
+    void onStreamProgress(long sent, long total, double bytesPerSecond);
+}
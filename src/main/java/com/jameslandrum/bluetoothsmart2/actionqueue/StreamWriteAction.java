@@ -0,0 +1,222 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.actionqueue;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import com.jameslandrum.bluetoothsmart2.Characteristic;
+import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
+import com.jameslandrum.bluetoothsmart2.Logging;
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes a payload of any size to a characteristic as a series of write without response packets, each as large
+ * as the connection's MTU allows.
+ *
+ * Android holds one outstanding write per connection, and calls onCharacteristicWrite once the stack has buffered
+ * a packet, so that callback is the credit for the next chunk. Packets go out back to back instead of waiting a
+ * round trip for each, and the timeout applies to the time between chunks rather than the whole transfer.
+ */
+final class StreamWriteAction extends Action {
+    private static final int ATT_HEADER = 3;
+    private static final long REPORT_INTERVAL = 250;
+
+    private final int mCharId;
+    private final int mTimeout;
+    private final StreamListener mListener;
+    private final ByteBuffer mData;
+    private final InputStream mStream;
+    private final AtomicBoolean mStreamUsed = new AtomicBoolean();
+
+    StreamWriteAction(int characteristicId, int timeout, ResultHandler handler, StreamListener listener,
+                      ByteBuffer data) {
+        super(handler);
+        mCharId = characteristicId;
+        mTimeout = timeout;
+        mListener = listener;
+        mData = data;
+        mStream = null;
+    }
+
+    StreamWriteAction(int characteristicId, int timeout, ResultHandler handler, StreamListener listener,
+                      InputStream stream) {
+        super(handler);
+        mCharId = characteristicId;
+        mTimeout = timeout;
+        mListener = listener;
+        mData = null;
+        mStream = stream;
+    }
+
+    @Override
+    void start(SmartDevice device, ActionHandle handle) {
+        if (!device.isReady()) {
+            handle.complete(Result.NOT_READY);
+            return;
+        }
+        Characteristic characteristic = device.getCharacteristic(mCharId);
+        BluetoothGatt gatt = device.getActiveConnection();
+        if (characteristic == null || gatt == null) {
+            handle.complete(Result.FAILED);
+            return;
+        }
+        // A stream can only be read once, so later runs of the intention have nothing left to send.
+        if (mStream != null && !mStreamUsed.compareAndSet(false, true)) {
+            Logging.error("Stream write on %s skipped: the stream was already consumed by an earlier run.",
+                    device.getClass().getSimpleName());
+            handle.complete(Result.FAILED);
+            return;
+        }
+
+        BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
+        Transfer transfer = new Transfer(handle, gatt, gattCharacteristic, device.getMtu() - ATT_HEADER);
+        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        handle.onFinish(transfer::release);
+        handle.listen(transfer);
+        handle.idleTimeout(mTimeout);
+        transfer.sendNext();
+    }
+
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
+
+    @Override
+    public boolean purge() {
+        return true;
+    }
+
+    /**
+     * The state of one run. Chunks are sent from whichever thread delivers the write callback.
+     */
+    private final class Transfer implements DeviceUpdateListener {
+        private final ActionHandle mHandle;
+        private final BluetoothGatt mGatt;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final int mWriteType;     // Restored when the transfer ends, as the characteristic is shared
+        private final ByteBuffer mSource;
+        private final long mTotal;
+        private final long mStarted = SystemClock.elapsedRealtime();
+        private byte[] mChunk;
+        private long mSent;
+        private long mReportedAt;
+
+        Transfer(ActionHandle handle, BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int payload) {
+            mHandle = handle;
+            mGatt = gatt;
+            mCharacteristic = characteristic;
+            mWriteType = characteristic.getWriteType();
+            mSource = mData == null ? null : mData.duplicate();
+            mTotal = mData == null ? -1 : mData.remaining();
+            mChunk = ChunkPool.acquire(payload);
+        }
+
+        @Override
+        public void onDeviceUpdateEvent(int event) {
+            switch (event) {
+                case SmartDevice.EVENT_SECURITY_FAILURE:
+                    finish(Result.BONDING_REQUIRED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_WRITE_FAILURE:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                case SmartDevice.EVENT_DISCONNECTED:
+                    finish(Result.FAILED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_WRITTEN:
+                    mHandle.progress();
+                    sendNext();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        synchronized void sendNext() {
+            if (mHandle.isDone() || mChunk == null) return;
+            try {
+                int length = read(mChunk);
+                if (length <= 0) {
+                    report(true);
+                    finish(Result.OK);
+                    return;
+                }
+                byte[] value = mChunk;
+                if (length < mChunk.length) {
+                    value = ChunkPool.acquire(length);
+                    System.arraycopy(mChunk, 0, value, 0, length);
+                }
+                mCharacteristic.setValue(value);
+                boolean sent = mGatt.writeCharacteristic(mCharacteristic);
+                // The value is copied when the write is queued, so a short final chunk can go straight back.
+                if (value != mChunk) ChunkPool.release(value);
+                if (!sent) {
+                    finish(Result.FAILED);
+                    return;
+                }
+                mSent += length;
+                report(false);
+            } catch (IOException | RuntimeException e) {
+                Logging.error("Stream write error: %s", e);
+                finish(Result.UNKNOWN);
+            }
+        }
+
+        // Fills as much of the buffer as the source allows; only the last chunk comes back short.
+        private int read(byte[] buffer) throws IOException {
+            if (mSource != null) {
+                int length = Math.min(buffer.length, mSource.remaining());
+                mSource.get(buffer, 0, length);
+                return length;
+            }
+            int length = 0;
+            while (length < buffer.length) {
+                int count = mStream.read(buffer, length, buffer.length - length);
+                if (count < 0) break;
+                length += count;
+            }
+            return length;
+        }
+
+        private void report(boolean last) {
+            if (mListener == null) return;
+            long now = SystemClock.elapsedRealtime();
+            if (!last && now - mReportedAt < REPORT_INTERVAL) return;
+            mReportedAt = now;
+            long elapsed = Math.max(1, now - mStarted);
+            mListener.onStreamProgress(mSent, mTotal, mSent * 1000.0 / elapsed);
+        }
+
+        private void finish(Result result) {
+            mHandle.complete(result);
+        }
+
+        // Runs when the handle completes, including by its idle timeout or a disconnect.
+        synchronized void release() {
+            if (mChunk == null) return;
+            ChunkPool.release(mChunk);
+            mChunk = null;
+            mCharacteristic.setWriteType(mWriteType);
+        }
+    }
+}
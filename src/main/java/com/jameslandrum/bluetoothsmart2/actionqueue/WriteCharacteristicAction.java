@@ -18,7 +18,6 @@ package com.jameslandrum.bluetoothsmart2.actionqueue;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 import com.jameslandrum.bluetoothsmart2.Characteristic;
-import com.jameslandrum.bluetoothsmart2.DeviceUpdateListener;
 import com.jameslandrum.bluetoothsmart2.Logging;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
 
@@ -37,51 +36,50 @@ final class WriteCharacteristicAction extends Action {
     }
 
     @Override
-    public Result execute(SmartDevice device) {
+    void start(SmartDevice device, ActionHandle handle) {
         if (!device.isReady()) {
-            setResult(Result.NOT_READY);
-        } else {
-            device.subscribeToUpdates(mListener);
-
-            try {
-                Characteristic characteristic = device.getCharacteristic(mCharId);
-                BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
-                gattCharacteristic.setValue(mData);
-                if (mWriteMode != -1) gattCharacteristic.setWriteType(mWriteMode);
-                device.getActiveConnection().writeCharacteristic(gattCharacteristic);
-                Logging.notice("Write sent with type %d.", mWriteMode);
-                waitForFinish(mTimeout);
-            } catch (Exception e) {
-                Logging.notice("Write error: %s", e.getMessage());
-                e.printStackTrace();
-                setResult(Result.UNKNOWN);
+            handle.complete(Result.NOT_READY);
+            return;
+        }
+        handle.listen(event -> {
+            switch (event) {
+                case SmartDevice.EVENT_SECURITY_FAILURE:
+                    handle.complete(Result.BONDING_REQUIRED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_WRITE_FAILURE:
+                case SmartDevice.EVENT_CONNECTION_ERROR:
+                case SmartDevice.EVENT_DISCONNECTED:
+                    handle.complete(Result.FAILED);
+                    break;
+                case SmartDevice.EVENT_CHARACTERISTIC_WRITTEN:
+                    handle.complete(Result.OK);
+                    break;
+                default:
+                    break;
             }
+        });
+        handle.timeout(mTimeout);
 
-            device.unsubscribeToUpdates(mListener);
+        try {
+            Characteristic characteristic = device.getCharacteristic(mCharId);
+            BluetoothGattCharacteristic gattCharacteristic = characteristic.getNativeCharacteristic();
+            gattCharacteristic.setValue(mData);
+            if (mWriteMode != -1) gattCharacteristic.setWriteType(mWriteMode);
+            if (!device.getActiveConnection().writeCharacteristic(gattCharacteristic)) {
+                handle.complete(Result.FAILED);
+                return;
+            }
+            Logging.notice("Write sent with type %d.", mWriteMode);
+        } catch (Exception e) {
+            Logging.error("Write error: %s", e);
+            handle.complete(Result.UNKNOWN);
         }
-
-        return getResult();
     }
 
-    private final DeviceUpdateListener mListener = (action) -> {
-        switch (action) {
-            case SmartDevice.EVENT_SECURITY_FAILURE:
-                setResult(Result.BONDING_REQUIRED);
-                finish();
-                break;
-            case SmartDevice.EVENT_CHARACTERISTIC_WRITE_FAILURE:
-            case SmartDevice.EVENT_CONNECTION_ERROR:
-                setResult(Result.FAILED);
-                finish();
-                break;
-            case SmartDevice.EVENT_CHARACTERISTIC_WRITTEN:
-                setResult(Result.OK);
-                finish();
-                break;
-            default:
-                break;
-        }
-    };
+    @Override
+    int getArbitration() {
+        return GattArbiter.OPERATION;
+    }
 
     @Override
     public boolean purge() {
@@ -0,0 +1,41 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The link settings a device class is negotiated to after every connect made through an Intention.
+ * Each setting is best effort; devices or platforms that do not support it keep the default.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface LinkProfile {
+    /** The ATT MTU to request, or 0 to keep the default of 23. **/
+    int mtu() default 0;
+    /** The BluetoothGatt CONNECTION_PRIORITY_* to request, or -1 to keep the default. **/
+    int connectionPriority() default -1;
+    /** A mask of BluetoothDevice PHY_LE_*_MASK values to transmit on, or 0 to keep the default. **/
+    int txPhy() default 0;
+    /** A mask of BluetoothDevice PHY_LE_*_MASK values to receive on, or 0 to keep the default. **/
+    int rxPhy() default 0;
+    /** The BluetoothDevice PHY_OPTION_* for the coded PHY. **/
+    int phyOptions() default 0;
+}
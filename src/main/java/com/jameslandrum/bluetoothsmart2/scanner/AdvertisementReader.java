@@ -0,0 +1,394 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.Utils;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Flyweight reader for the AD structures of a raw scan record.
+ * A single reader is reset for every advertisement a scanner receives, so walking the record and
+ * answering the common questions (service UUIDs, manufacturer, name, tx power) never allocates.
+ * Values returned are only valid until the next call to reset().
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AdvertisementReader {
+    public static final int TYPE_FLAGS                  = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE      = 0x02;
+    public static final int TYPE_UUID16_COMPLETE        = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE      = 0x04;
+    public static final int TYPE_UUID32_COMPLETE        = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE     = 0x06;
+    public static final int TYPE_UUID128_COMPLETE       = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT       = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE    = 0x09;
+    public static final int TYPE_TX_POWER               = 0x0A;
+    public static final int TYPE_SERVICE_DATA_16        = 0x16;
+    public static final int TYPE_SERVICE_DATA_32        = 0x20;
+    public static final int TYPE_SERVICE_DATA_128       = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA      = 0xFF;
+
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+    public static final int NO_MANUFACTURER = -1;
+
+
+    private static final int MAX_UUIDS = 32;
+    private static final int MAX_SERVICE_DATA = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mData;
+    private int mLength;
+
+    // Cursor state for next()
+    private int mPosition;
+    private int mType;
+    private int mValueOffset;
+    private int mValueLength;
+
+    // Fields indexed once per reset()
+    private final long[] mUuidMsb = new long[MAX_UUIDS];
+    private final long[] mUuidLsb = new long[MAX_UUIDS];
+    private int mUuidCount;
+    private final long[] mServiceDataMsb = new long[MAX_SERVICE_DATA];
+    private final long[] mServiceDataLsb = new long[MAX_SERVICE_DATA];
+    private final int[] mServiceDataOffset = new int[MAX_SERVICE_DATA];
+    private final int[] mServiceDataLength = new int[MAX_SERVICE_DATA];
+    private int mServiceDataCount;
+    private int mNameOffset;
+    private int mNameLength;
+    private int mTxPower;
+    private int mManufacturerId;
+    private int mManufacturerOffset;
+    private int mManufacturerLength;
+
+    /**
+     * Points the reader at a new scan record and indexes its AD structures.
+     * @param data The raw scan record.
+     * @return The reader.
+     */
+    public AdvertisementReader reset(byte[] data) {
+        return reset(data, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Points the reader at a new scan record and indexes its AD structures.
+     * @param data The raw scan record.
+     * @param length The number of valid bytes in data.
+     * @return The reader.
+     */
+    public AdvertisementReader reset(byte[] data, int length) {
+        mData = data;
+        mLength = data == null ? 0 : Math.min(length, data.length);
+        mUuidCount = 0;
+        mServiceDataCount = 0;
+        mNameOffset = -1;
+        mNameLength = 0;
+        mTxPower = NO_TX_POWER;
+        mManufacturerId = NO_MANUFACTURER;
+        mManufacturerOffset = -1;
+        mManufacturerLength = 0;
+
+        rewind();
+        while (next()) index();
+        rewind();
+        return this;
+    }
+
+    /**
+     * Resets the cursor to the first AD structure.
+     */
+    public void rewind() {
+        mPosition = 0;
+        mType = 0;
+        mValueOffset = 0;
+        mValueLength = 0;
+    }
+
+    /**
+     * Advances the cursor to the next AD structure.
+     * @return false once the end of the record, a zero-length terminator, or a malformed structure is reached.
+     */
+    public boolean next() {
+        if (mPosition >= mLength) return false;
+        int length = mData[mPosition] & 0xFF;
+        if (length == 0 || mPosition + length >= mLength) {
+            mPosition = mLength;
+            return false;
+        }
+        mType = mData[mPosition + 1] & 0xFF;
+        mValueOffset = mPosition + 2;
+        mValueLength = length - 1;
+        mPosition += length + 1;
+        return true;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getValueOffset() {
+        return mValueOffset;
+    }
+
+    public int getValueLength() {
+        return mValueLength;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getServiceUuidCount() {
+        return mUuidCount;
+    }
+
+    public long getServiceUuidMsb(int index) {
+        return mUuidMsb[index];
+    }
+
+    public long getServiceUuidLsb(int index) {
+        return mUuidLsb[index];
+    }
+
+    public boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public boolean hasServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < mUuidCount; i++) {
+            if (mUuidMsb[i] == msb && mUuidLsb[i] == lsb) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Appends the advertised service UUIDs to the given list. This allocates, and is intended for callers
+     * outside of the scan path.
+     * @param out The list to add to.
+     */
+    public void collectServiceUuids(List<UUID> out) {
+        for (int i = 0; i < mUuidCount; i++) out.add(new UUID(mUuidMsb[i], mUuidLsb[i]));
+    }
+
+    public boolean hasLocalName() {
+        return mNameOffset >= 0;
+    }
+
+    /**
+     * Compares the advertised local name against a string without decoding the record.
+     * @param name The name to compare against.
+     * @return true if the record contains a local name equal to the given name.
+     */
+    public boolean localNameEquals(String name) {
+        if (mNameOffset < 0 || name == null) return false;
+        int length = name.length();
+        if (length != mNameLength) return nonAsciiNameEquals(name);
+        for (int i = 0; i < length; i++) {
+            int b = mData[mNameOffset + i];
+            if (b < 0) return nonAsciiNameEquals(name);
+            if (b != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean nonAsciiNameEquals(String name) {
+        for (int i = 0; i < mNameLength; i++) {
+            if (mData[mNameOffset + i] < 0) return name.equals(getLocalName());
+        }
+        return false;
+    }
+
+    /**
+     * Hashes the advertised local name the same way String.hashCode() would, without decoding ASCII names.
+     * @return The hash of the local name, or 0 if none was advertised.
+     */
+    public int localNameHash() {
+        if (mNameOffset < 0) return 0;
+        int hash = 0;
+        for (int i = 0; i < mNameLength; i++) {
+            int b = mData[mNameOffset + i];
+            if (b < 0) return getLocalName().hashCode();
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    /**
+     * Decodes the advertised local name. This allocates.
+     * @return The local name, or null if none was advertised.
+     */
+    public String getLocalName() {
+        if (mNameOffset < 0) return null;
+        return new String(mData, mNameOffset, mNameLength, UTF_8);
+    }
+
+    public int getNameOffset() {
+        return mNameOffset;
+    }
+
+    public int getNameLength() {
+        return mNameLength;
+    }
+
+    /**
+     * @return The advertised tx power level in dBm, or NO_TX_POWER if not present.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    /**
+     * @return The company identifier of the first manufacturer specific data structure, or NO_MANUFACTURER.
+     */
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * @return The offset of the manufacturer data following the company identifier, or -1.
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerOffset;
+    }
+
+    public int getManufacturerDataLength() {
+        return mManufacturerLength;
+    }
+
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    public long getServiceDataMsb(int index) {
+        return mServiceDataMsb[index];
+    }
+
+    public long getServiceDataLsb(int index) {
+        return mServiceDataLsb[index];
+    }
+
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffset[index];
+    }
+
+    public int getServiceDataLength(int index) {
+        return mServiceDataLength[index];
+    }
+
+    /**
+     * Finds the service data structure for a service.
+     * @return The index of the service data, or -1 if the service did not advertise data.
+     */
+    public int findServiceData(long msb, long lsb) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (mServiceDataMsb[i] == msb && mServiceDataLsb[i] == lsb) return i;
+        }
+        return -1;
+    }
+
+    private void index() {
+        switch (mType) {
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16_COMPLETE:
+                for (int i = 0; i + 2 <= mValueLength; i += 2) {
+                    addUuid(Utils.BASE_UUID_MSB | ((long) readShort(mValueOffset + i) << 32), Utils.BASE_UUID_LSB);
+                }
+                break;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32_COMPLETE:
+                for (int i = 0; i + 4 <= mValueLength; i += 4) {
+                    addUuid(Utils.BASE_UUID_MSB | (readInt(mValueOffset + i) << 32), Utils.BASE_UUID_LSB);
+                }
+                break;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128_COMPLETE:
+                for (int i = 0; i + 16 <= mValueLength; i += 16) {
+                    addUuid(readLong(mValueOffset + i + 8), readLong(mValueOffset + i));
+                }
+                break;
+            case TYPE_LOCAL_NAME_SHORT:
+                if (mNameOffset >= 0) break;
+                // fall through
+            case TYPE_LOCAL_NAME_COMPLETE:
+                mNameOffset = mValueOffset;
+                mNameLength = mValueLength;
+                break;
+            case TYPE_TX_POWER:
+                if (mValueLength >= 1) mTxPower = mData[mValueOffset];
+                break;
+            case TYPE_SERVICE_DATA_16:
+                if (mValueLength >= 2) {
+                    addServiceData(Utils.BASE_UUID_MSB | ((long) readShort(mValueOffset) << 32), Utils.BASE_UUID_LSB, 2);
+                }
+                break;
+            case TYPE_SERVICE_DATA_32:
+                if (mValueLength >= 4) {
+                    addServiceData(Utils.BASE_UUID_MSB | (readInt(mValueOffset) << 32), Utils.BASE_UUID_LSB, 4);
+                }
+                break;
+            case TYPE_SERVICE_DATA_128:
+                if (mValueLength >= 16) {
+                    addServiceData(readLong(mValueOffset + 8), readLong(mValueOffset), 16);
+                }
+                break;
+            case TYPE_MANUFACTURER_DATA:
+                if (mManufacturerId == NO_MANUFACTURER && mValueLength >= 2) {
+                    mManufacturerId = readShort(mValueOffset);
+                    mManufacturerOffset = mValueOffset + 2;
+                    mManufacturerLength = mValueLength - 2;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addUuid(long msb, long lsb) {
+        if (mUuidCount == MAX_UUIDS) return;
+        mUuidMsb[mUuidCount] = msb;
+        mUuidLsb[mUuidCount] = lsb;
+        mUuidCount++;
+    }
+
+    private void addServiceData(long msb, long lsb, int uuidLength) {
+        if (mServiceDataCount == MAX_SERVICE_DATA) return;
+        mServiceDataMsb[mServiceDataCount] = msb;
+        mServiceDataLsb[mServiceDataCount] = lsb;
+        mServiceDataOffset[mServiceDataCount] = mValueOffset + uuidLength;
+        mServiceDataLength[mServiceDataCount] = mValueLength - uuidLength;
+        mServiceDataCount++;
+    }
+
+    // AD structure values are little endian.
+    private int readShort(int offset) {
+        return (mData[offset] & 0xFF) | (mData[offset + 1] & 0xFF) << 8;
+    }
+
+    private long readInt(int offset) {
+        return (readShort(offset) | (long) readShort(offset + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    private long readLong(int offset) {
+        return readInt(offset) | readInt(offset + 4) << 32;
+    }
+}
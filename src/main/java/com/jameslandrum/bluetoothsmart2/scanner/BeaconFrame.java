@@ -0,0 +1,184 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.UUID;
+
+/**
+ * A decoded iBeacon or Eddystone frame.
+ *
+ * The scanner reuses a single frame for every beacon it decodes, so a frame is only valid for the duration of
+ * the callback it is passed to. Copy out any fields that are needed later. Only the fields for the frame's
+ * type are meaningful.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BeaconFrame {
+    @IntDef({TYPE_NONE, TYPE_IBEACON, TYPE_EDDYSTONE_UID, TYPE_EDDYSTONE_URL, TYPE_EDDYSTONE_TLM})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface FrameType {}
+    public static final int TYPE_NONE =             0;
+    public static final int TYPE_IBEACON =          1;
+    public static final int TYPE_EDDYSTONE_UID =    2;
+    public static final int TYPE_EDDYSTONE_URL =    3;
+    public static final int TYPE_EDDYSTONE_TLM =    4;
+
+    static final int MAX_URL_LENGTH = 17;
+
+    private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+    private static final String[] URL_EXPANSIONS = {".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/",
+            ".gov/", ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+    private static final int EDDYSTONE_LOSS_AT_ONE_METER = 41;
+
+    int mType;
+    long mAddress;
+    int mRssi;
+    int mTxPower;
+
+    // iBeacon
+    long mUuidMsb;
+    long mUuidLsb;
+    int mMajor;
+    int mMinor;
+
+    // Eddystone UID
+    long mNamespaceHigh;    // First 8 bytes of the namespace
+    int mNamespaceLow;      // Last 2 bytes of the namespace
+    long mInstance;         // 6 bytes
+
+    // Eddystone URL
+    int mUrlScheme;
+    final byte[] mUrl = new byte[MAX_URL_LENGTH];
+    int mUrlLength;
+
+    // Eddystone TLM
+    int mTlmVersion;
+    int mBatteryVoltage;
+    float mTemperature;
+    long mAdvertisementCount;
+    long mUptime;
+
+    public @FrameType int getType() {
+        return mType;
+    }
+
+    /**
+     * @return The MAC address of the advertising device, packed into a long.
+     */
+    public long getAddress() {
+        return mAddress;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * @return The calibrated transmit power: the expected RSSI at one meter for iBeacon, at zero meters for Eddystone.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    /**
+     * @return The expected RSSI at one meter.
+     */
+    public int getReferencePower() {
+        return mType == TYPE_IBEACON ? mTxPower : mTxPower - EDDYSTONE_LOSS_AT_ONE_METER;
+    }
+
+    public long getUuidMsb() {
+        return mUuidMsb;
+    }
+
+    public long getUuidLsb() {
+        return mUuidLsb;
+    }
+
+    /**
+     * @return The proximity UUID of an iBeacon. Allocates; prefer getUuidMsb() and getUuidLsb() when ranging.
+     */
+    public UUID getUuid() {
+        return new UUID(mUuidMsb, mUuidLsb);
+    }
+
+    public int getMajor() {
+        return mMajor;
+    }
+
+    public int getMinor() {
+        return mMinor;
+    }
+
+    public long getNamespaceHigh() {
+        return mNamespaceHigh;
+    }
+
+    public int getNamespaceLow() {
+        return mNamespaceLow;
+    }
+
+    public long getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Decodes the URL of an Eddystone URL frame. Allocates.
+     */
+    public String getUrl() {
+        if (mType != TYPE_EDDYSTONE_URL) return null;
+        StringBuilder url = new StringBuilder(mUrlScheme < URL_SCHEMES.length ? URL_SCHEMES[mUrlScheme] : "");
+        for (int i = 0; i < mUrlLength; i++) {
+            int c = mUrl[i] & 0xFF;
+            if (c < URL_EXPANSIONS.length) url.append(URL_EXPANSIONS[c]);
+            else url.append((char) c);
+        }
+        return url.toString();
+    }
+
+    public int getTlmVersion() {
+        return mTlmVersion;
+    }
+
+    /**
+     * @return The battery voltage in millivolts, or 0 if not supported by the beacon.
+     */
+    public int getBatteryVoltage() {
+        return mBatteryVoltage;
+    }
+
+    /**
+     * @return The temperature in degrees Celsius, or NaN if not supported by the beacon.
+     */
+    public float getTemperature() {
+        return mTemperature;
+    }
+
+    public long getAdvertisementCount() {
+        return mAdvertisementCount;
+    }
+
+    /**
+     * @return The time since the beacon powered on, in milliseconds.
+     */
+    public long getUptime() {
+        return mUptime;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.Utils;
+
+/**
+ * Decodes iBeacon and Eddystone frames from an indexed advertisement into a reusable BeaconFrame.
+ * Beacon fields are big endian, unlike the rest of the advertisement.
+ */
+final class BeaconParser {
+    static final int EDDYSTONE_SERVICE = 0xFEAA;
+    static final long EDDYSTONE_MSB = Utils.BASE_UUID_MSB | ((long) EDDYSTONE_SERVICE << 32);
+
+    private static final int IBEACON_TYPE = 0x02;
+    private static final int IBEACON_LENGTH = 0x15;
+
+    private static final int EDDYSTONE_UID = 0x00;
+    private static final int EDDYSTONE_URL = 0x10;
+    private static final int EDDYSTONE_TLM = 0x20;
+
+    private BeaconParser() {
+    }
+
+    /**
+     * @return true if the advertisement held a beacon frame, which was decoded into the frame.
+     */
+    static boolean parse(AdvertisementReader reader, long mac, int rssi, BeaconFrame frame) {
+        frame.mType = BeaconFrame.TYPE_NONE;
+        frame.mAddress = mac;
+        frame.mRssi = rssi;
+
+        if (reader.getManufacturerId() == DeviceScanner.APPLE_COMPANY_ID) {
+            return parseIBeacon(reader.getData(), reader.getManufacturerDataOffset(),
+                    reader.getManufacturerDataLength(), frame);
+        }
+        int index = reader.findServiceData(EDDYSTONE_MSB, Utils.BASE_UUID_LSB);
+        if (index >= 0) {
+            return parseEddystone(reader.getData(), reader.getServiceDataOffset(index),
+                    reader.getServiceDataLength(index), frame);
+        }
+        return false;
+    }
+
+    private static boolean parseIBeacon(byte[] data, int offset, int length, BeaconFrame frame) {
+        if (length < 23 || data[offset] != IBEACON_TYPE || data[offset + 1] != IBEACON_LENGTH) return false;
+        frame.mType = BeaconFrame.TYPE_IBEACON;
+        frame.mUuidMsb = readLong(data, offset + 2);
+        frame.mUuidLsb = readLong(data, offset + 10);
+        frame.mMajor = readShort(data, offset + 18);
+        frame.mMinor = readShort(data, offset + 20);
+        frame.mTxPower = data[offset + 22];
+        return true;
+    }
+
+    private static boolean parseEddystone(byte[] data, int offset, int length, BeaconFrame frame) {
+        if (length < 1) return false;
+        switch (data[offset] & 0xFF) {
+            case EDDYSTONE_UID:
+                if (length < 18) return false;
+                frame.mType = BeaconFrame.TYPE_EDDYSTONE_UID;
+                frame.mTxPower = data[offset + 1];
+                frame.mNamespaceHigh = readLong(data, offset + 2);
+                frame.mNamespaceLow = readShort(data, offset + 10);
+                frame.mInstance = (long) readShort(data, offset + 12) << 32 | readInt(data, offset + 14);
+                return true;
+            case EDDYSTONE_URL:
+                if (length < 3) return false;
+                frame.mType = BeaconFrame.TYPE_EDDYSTONE_URL;
+                frame.mTxPower = data[offset + 1];
+                frame.mUrlScheme = data[offset + 2] & 0xFF;
+                frame.mUrlLength = Math.min(length - 3, BeaconFrame.MAX_URL_LENGTH);
+                System.arraycopy(data, offset + 3, frame.mUrl, 0, frame.mUrlLength);
+                return true;
+            case EDDYSTONE_TLM:
+                if (length < 14) return false;
+                frame.mType = BeaconFrame.TYPE_EDDYSTONE_TLM;
+                frame.mTlmVersion = data[offset + 1] & 0xFF;
+                frame.mBatteryVoltage = readShort(data, offset + 2);
+                int temperature = (short) readShort(data, offset + 4);
+                frame.mTemperature = temperature == (short) 0x8000 ? Float.NaN : temperature / 256f;
+                frame.mAdvertisementCount = readInt(data, offset + 6);
+                frame.mUptime = readInt(data, offset + 10) * 100;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static long readInt(byte[] data, int offset) {
+        return ((long) readShort(data, offset) << 16 | readShort(data, offset + 2)) & 0xFFFFFFFFL;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return readInt(data, offset) << 32 | readInt(data, offset + 4);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.Utils;
+
+import java.util.UUID;
+
+/**
+ * A set of beacons that is entered when any of them is seen and exited once none of them have been seen
+ * for the exit timeout. A region matches either iBeacons, by proximity UUID and major and minor ranges,
+ * or Eddystone UID beacons, by namespace and optionally instance.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class BeaconRegion {
+    public static final long DEFAULT_EXIT_TIMEOUT = 10 * 1000;
+    public static final long ANY_INSTANCE = -1;
+
+    private final String mId;
+    private boolean mEddystone;
+    private boolean mAnyUuid = true;
+    private long mUuidMsb;
+    private long mUuidLsb;
+    private int mMajorMin = 0;
+    private int mMajorMax = 0xFFFF;
+    private int mMinorMin = 0;
+    private int mMinorMax = 0xFFFF;
+    private long mNamespaceHigh;
+    private int mNamespaceLow;
+    private long mInstance = ANY_INSTANCE;
+    private long mExitTimeout = DEFAULT_EXIT_TIMEOUT;
+
+    // State, guarded by the owning RegionTracker
+    long mLastSeen;
+    boolean mInside;
+
+    private BeaconRegion(String id) {
+        mId = id;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public boolean isEddystone() {
+        return mEddystone;
+    }
+
+    public long getExitTimeout() {
+        return mExitTimeout;
+    }
+
+    boolean hasUuid() {
+        return !mAnyUuid;
+    }
+
+    long getUuidMsb() {
+        return mUuidMsb;
+    }
+
+    long getUuidLsb() {
+        return mUuidLsb;
+    }
+
+    long getNamespaceHigh() {
+        return mNamespaceHigh;
+    }
+
+    int getNamespaceLow() {
+        return mNamespaceLow;
+    }
+
+    boolean matches(BeaconFrame frame) {
+        if (mEddystone) {
+            return frame.mType == BeaconFrame.TYPE_EDDYSTONE_UID
+                    && frame.mNamespaceHigh == mNamespaceHigh && frame.mNamespaceLow == mNamespaceLow
+                    && (mInstance == ANY_INSTANCE || frame.mInstance == mInstance);
+        }
+        return frame.mType == BeaconFrame.TYPE_IBEACON
+                && (mAnyUuid || (frame.mUuidMsb == mUuidMsb && frame.mUuidLsb == mUuidLsb))
+                && frame.mMajor >= mMajorMin && frame.mMajor <= mMajorMax
+                && frame.mMinor >= mMinorMin && frame.mMinor <= mMinorMax;
+    }
+
+    @SuppressWarnings("unused")
+    public static class Builder {
+        private BeaconRegion region;
+
+        public Builder(String id) {
+            region = new BeaconRegion(id);
+        }
+
+        /**
+         * Matches iBeacons with the given proximity UUID. Without this, iBeacons with any UUID match.
+         * @param uuid The proximity UUID.
+         * @return The builder.
+         */
+        public Builder uuid(String uuid) {
+            UUID value = Utils.uuidFromString(uuid);
+            region.mAnyUuid = false;
+            region.mUuidMsb = value.getMostSignificantBits();
+            region.mUuidLsb = value.getLeastSignificantBits();
+            return this;
+        }
+
+        public Builder major(int min, int max) {
+            region.mMajorMin = min;
+            region.mMajorMax = max;
+            return this;
+        }
+
+        public Builder minor(int min, int max) {
+            region.mMinorMin = min;
+            region.mMinorMax = max;
+            return this;
+        }
+
+        /**
+         * Matches Eddystone UID beacons in the given namespace instead of iBeacons.
+         * @param namespace The 10 byte namespace.
+         * @return The builder.
+         */
+        public Builder namespace(byte[] namespace) {
+            if (namespace.length != 10) throw new IllegalArgumentException("Namespace must be 10 bytes.");
+            long high = 0;
+            for (int i = 0; i < 8; i++) high = high << 8 | (namespace[i] & 0xFF);
+            region.mEddystone = true;
+            region.mNamespaceHigh = high;
+            region.mNamespaceLow = (namespace[8] & 0xFF) << 8 | (namespace[9] & 0xFF);
+            return this;
+        }
+
+        /**
+         * Matches only the Eddystone UID beacon with the given instance.
+         * @param instance The 6 byte instance, as a long.
+         * @return The builder.
+         */
+        public Builder instance(long instance) {
+            region.mInstance = instance;
+            return this;
+        }
+
+        public Builder exitTimeout(long timeout) {
+            region.mExitTimeout = timeout;
+            return this;
+        }
+
+        public BeaconRegion build() {
+            return region;
+        }
+    }
+}
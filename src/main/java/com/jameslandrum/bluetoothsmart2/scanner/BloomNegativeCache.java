@@ -0,0 +1,100 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
+
+import java.util.Arrays;
+
+/**
+ * Negative cache backed by two Bloom filters that rotate every half time to live.
+ * A device is considered rejected if either filter contains it. False positives are possible, at roughly
+ * 1% for the expected population, so a small number of valid devices may be ignored until the next rotation.
+ */
+final class BloomNegativeCache extends NegativeCache {
+    private static final int HASHES = 7;
+
+    private final long mRotateInterval;
+    private final int mBits;
+    private long[] mCurrent;
+    private long[] mPrevious;
+    private long mRotateAt;
+
+    BloomNegativeCache(int expectedDevices, long ttl) {
+        if (expectedDevices <= 0) throw new IllegalArgumentException("Expected devices must be positive.");
+        // ~9.6 bits per entry gives a 1% false positive rate with 7 hashes.
+        int words = Math.max(1, (expectedDevices * 10 + 63) / 64);
+        mBits = words * 64;
+        mCurrent = new long[words];
+        mPrevious = new long[words];
+        mRotateInterval = ttl / 2;
+    }
+
+    @Override
+    synchronized boolean contains(long mac, long now) {
+        if (mac < 0) return false;
+        rotate(now);
+        return test(mCurrent, mac) || test(mPrevious, mac);
+    }
+
+    @Override
+    synchronized void add(long mac, long signature, long now) {
+        if (mac < 0) return;
+        rotate(now);
+        int h1 = LongIndex.hash(mac);
+        int h2 = LongIndex.hash(mac ^ 0x5DEECE66DL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & 0x7FFFFFFF) % mBits;
+            mCurrent[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    @Override
+    void remove(long mac) {
+        // Bloom filters can not remove entries; known devices are checked before the negative cache.
+    }
+
+    @Override
+    synchronized void clear() {
+        Arrays.fill(mCurrent, 0);
+        Arrays.fill(mPrevious, 0);
+    }
+
+    @Override
+    synchronized void identifierAdded(Identifier identifier) {
+        clear();
+    }
+
+    private boolean test(long[] filter, long mac) {
+        int h1 = LongIndex.hash(mac);
+        int h2 = LongIndex.hash(mac ^ 0x5DEECE66DL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & 0x7FFFFFFF) % mBits;
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void rotate(long now) {
+        if (now < mRotateAt) return;
+        long[] recycled = mPrevious;
+        Arrays.fill(recycled, 0);
+        mPrevious = mCurrent;
+        mCurrent = recycled;
+        mRotateAt = now + mRotateInterval;
+    }
+}
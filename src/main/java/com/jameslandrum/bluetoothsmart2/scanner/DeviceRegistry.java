@@ -0,0 +1,200 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of known devices keyed by their MAC address packed into a long.
+ *
+ * The registry is split into stripes, each an open addressed table. Reads never lock: a slot's key never
+ * changes once claimed within a table, so a reader that finds the key and then reads the value always
+ * sees a value belonging to that key (or null, if it was removed). Writers lock only the stripe they touch,
+ * and removed slots are left as tombstones until the stripe is next rebuilt.
+ */
+@SuppressWarnings("WeakerAccess")
+final class DeviceRegistry {
+    private static final int STRIPES = 16;
+    private static final long EMPTY = -1L;
+
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+
+    DeviceRegistry() {
+        for (int i = 0; i < STRIPES; i++) mStripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(int hash) {
+        return mStripes[(hash >>> 28) & (STRIPES - 1)];
+    }
+
+    SmartDevice get(long mac) {
+        if (mac < 0) return null;
+        int hash = LongIndex.hash(mac);
+        return stripeFor(hash).mTable.get(mac, hash);
+    }
+
+    boolean contains(long mac) {
+        return get(mac) != null;
+    }
+
+    /**
+     * @return The device previously registered for the address, or null.
+     */
+    SmartDevice put(long mac, SmartDevice device) {
+        if (mac < 0) throw new IllegalArgumentException("Invalid device address.");
+        int hash = LongIndex.hash(mac);
+        return stripeFor(hash).put(mac, hash, device, false);
+    }
+
+    /**
+     * @return The device already registered for the address, or null if the given device was registered.
+     */
+    SmartDevice putIfAbsent(long mac, SmartDevice device) {
+        if (mac < 0) throw new IllegalArgumentException("Invalid device address.");
+        int hash = LongIndex.hash(mac);
+        return stripeFor(hash).put(mac, hash, device, true);
+    }
+
+    /**
+     * @return The device that was removed, or null.
+     */
+    SmartDevice remove(long mac) {
+        if (mac < 0) return null;
+        int hash = LongIndex.hash(mac);
+        return stripeFor(hash).remove(mac, hash);
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : mStripes) size += stripe.mSize;
+        return size;
+    }
+
+    /**
+     * Copies every registered device into a list.
+     */
+    List<SmartDevice> values() {
+        ArrayList<SmartDevice> result = new ArrayList<>(size());
+        for (Stripe stripe : mStripes) stripe.mTable.collect(result);
+        return result;
+    }
+
+    private static final class Stripe {
+        private volatile Table mTable = new Table(16);
+        private volatile int mSize;
+        private int mUsed;  // Claimed slots, including tombstones.
+
+        synchronized SmartDevice put(long mac, int hash, SmartDevice device, boolean onlyIfAbsent) {
+            Table table = mTable;
+            int slot = table.find(mac, hash);
+            if (slot >= 0) {
+                SmartDevice previous = table.mValues.get(slot);
+                if (previous == null) mSize++;
+                if (previous == null || !onlyIfAbsent) table.mValues.set(slot, device);
+                return previous;
+            }
+
+            if ((mUsed + 1) * 2 > table.capacity()) {
+                table = rebuild(table);
+            }
+            table.claim(mac, hash, device);
+            mUsed++;
+            mSize++;
+            return null;
+        }
+
+        synchronized SmartDevice remove(long mac, int hash) {
+            Table table = mTable;
+            int slot = table.find(mac, hash);
+            if (slot < 0) return null;
+            SmartDevice previous = table.mValues.getAndSet(slot, null);
+            if (previous != null) mSize--;
+            return previous;
+        }
+
+        private Table rebuild(Table old) {
+            int capacity = old.capacity();
+            while ((mSize + 1) * 2 > capacity) capacity <<= 1;
+            if (mSize * 4 + 4 > capacity) capacity <<= 1;
+
+            Table table = new Table(capacity);
+            mUsed = 0;
+            for (int i = 0; i < old.capacity(); i++) {
+                SmartDevice device = old.mValues.get(i);
+                if (device == null) continue;
+                long key = old.mKeys.get(i);
+                table.claim(key, LongIndex.hash(key), device);
+                mUsed++;
+            }
+            mTable = table;
+            return table;
+        }
+    }
+
+    private static final class Table {
+        final AtomicLongArray mKeys;
+        final AtomicReferenceArray<SmartDevice> mValues;
+        final int mMask;
+
+        Table(int capacity) {
+            mKeys = new AtomicLongArray(capacity);
+            mValues = new AtomicReferenceArray<>(capacity);
+            mMask = capacity - 1;
+            for (int i = 0; i < capacity; i++) mKeys.lazySet(i, EMPTY);
+        }
+
+        int capacity() {
+            return mMask + 1;
+        }
+
+        SmartDevice get(long mac, int hash) {
+            int slot = find(mac, hash);
+            return slot < 0 ? null : mValues.get(slot);
+        }
+
+        int find(long mac, int hash) {
+            int slot = hash & mMask;
+            long key;
+            while ((key = mKeys.get(slot)) != EMPTY) {
+                if (key == mac) return slot;
+                slot = (slot + 1) & mMask;
+            }
+            return -1;
+        }
+
+        // Called with the stripe locked. The value is published before the key, so readers never see a
+        // claimed key without its value.
+        void claim(long mac, int hash, SmartDevice device) {
+            int slot = hash & mMask;
+            while (mKeys.get(slot) != EMPTY) slot = (slot + 1) & mMask;
+            mValues.set(slot, device);
+            mKeys.set(slot, mac);
+        }
+
+        void collect(List<SmartDevice> out) {
+            for (int i = 0; i <= mMask; i++) {
+                SmartDevice device = mValues.get(i);
+                if (device != null) out.add(device);
+            }
+        }
+    }
+}
@@ -16,28 +16,38 @@
 
 package com.jameslandrum.bluetoothsmart2.scanner;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
-import com.annimon.stream.Optional;
-import com.annimon.stream.Stream;
+import com.jameslandrum.bluetoothsmart2.BatchScannerCallback;
+import com.jameslandrum.bluetoothsmart2.BeaconCallback;
+import com.jameslandrum.bluetoothsmart2.ListenerList;
+import com.jameslandrum.bluetoothsmart2.Logging;
+import com.jameslandrum.bluetoothsmart2.RegionCallback;
 import com.jameslandrum.bluetoothsmart2.ScannerCallback;
 import com.jameslandrum.bluetoothsmart2.SmartDevice;
+import com.jameslandrum.bluetoothsmart2.Utils;
 import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Interface class that connects to the proper device scanner for Android
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public abstract class DeviceScanner {
-    private static final byte[] APPLE_PREFIX =
-            new byte[]{0x4C, 0x00};
+    static final int APPLE_COMPANY_ID = 0x004C;
 
     @IntDef({SCAN_MODE_LOW_LATENCY, SCAN_MODE_LOW_POWER, SCAN_MODE_NORMAL, SCAN_MODE_PASSIVE})
     @Retention(RetentionPolicy.SOURCE)
@@ -47,24 +57,87 @@ public abstract class DeviceScanner {
     public static final int SCAN_MODE_NORMAL =      1;
     public static final int SCAN_MODE_LOW_LATENCY = 2;
 
+    @IntDef({OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_NEWEST, OVERFLOW_CONFLATE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OverflowPolicy {}
+    /** When the ingest queue is full, the oldest queued advertisement is dropped. **/
+    public static final int OVERFLOW_DROP_OLDEST =  0;
+    /** When the ingest queue is full, the incoming advertisement is dropped. **/
+    public static final int OVERFLOW_DROP_NEWEST =  1;
+    /** Only the newest queued advertisement per device is processed; when full, the oldest is dropped. **/
+    public static final int OVERFLOW_CONFLATE =     2;
+
+    private static final ListenerList.Delivery<ScannerCallback, SmartDevice> DEVICE_EVENT =
+            (listener, event, device) -> listener.onDeviceEvent(event, device);
+    private static final ListenerList.Delivery<ScannerCallback, DeviceBatch> DEVICE_BATCH = (listener, event, batch) -> {
+        if (listener instanceof BatchScannerCallback) {
+            ((BatchScannerCallback) listener).onDeviceBatch(batch.mDiscovered, batch.mUpdated);
+            return;
+        }
+        for (int i = 0; i < batch.mDiscovered.size(); i++) {
+            listener.onDeviceEvent(ScannerCallback.DEVICE_DISCOVERED, batch.mDiscovered.get(i));
+        }
+        for (int i = 0; i < batch.mUpdated.size(); i++) {
+            listener.onDeviceEvent(ScannerCallback.DEVICE_UPDATED, batch.mUpdated.get(i));
+        }
+    };
+    private static final ListenerList.Delivery<BeaconCallback, BeaconFrame> BEACON_FRAME =
+            (listener, event, frame) -> listener.onBeaconFrame(frame);
+    private static final ListenerList.Delivery<RegionCallback, BeaconRegion> REGION_ENTERED =
+            (listener, event, region) -> listener.onRegionEntered(region);
+    private static final ListenerList.Delivery<RegionCallback, BeaconRegion> REGION_EXITED =
+            (listener, event, region) -> listener.onRegionExited(region);
+
     protected static int mScanMode;
     protected static int mScanInterval;
     private static DeviceScanner mInstance;
-    protected static final ArrayList<ScannerCallback> mListeners = new ArrayList<>();
-    protected static final ArrayList<String> mInvalidDevices = new ArrayList<>();
-    protected static final ConcurrentHashMap<String, SmartDevice> mDevices = new ConcurrentHashMap<>();
+    protected static final ListenerList<ScannerCallback> mListeners = new ListenerList<>();
+    private static volatile NegativeCache mInvalidDevices =
+            NegativeCache.lru(NegativeCache.DEFAULT_CAPACITY, NegativeCache.DEFAULT_TTL);
+    private static final DeviceRegistry mDevices = new DeviceRegistry();
     protected static final HashSet<Identifier> mIdentifiers = new HashSet<>();
+    private static volatile IdentifierIndex mIdentifierIndex = IdentifierIndex.EMPTY;
+    private static final ScanStatistics mStatistics = new ScanStatistics();
+    private static volatile int mDefaultRssiDelta = 1;
+    private static volatile long mDefaultMinUpdateInterval = 0;
+    private static final ExpiryWheel mExpiry = new ExpiryWheel();
+    private static volatile long mDefaultStaleTimeout = 0;
+    private static final Handler mExpiryHandler = new Handler(Looper.getMainLooper());
+    private static final AtomicBoolean mExpiryScheduled = new AtomicBoolean();
+    protected static final ListenerList<BeaconCallback> mBeaconListeners = new ListenerList<>();
+    protected static final ListenerList<RegionCallback> mRegionListeners = new ListenerList<>();
+    private static final RegionTracker mRegions = new RegionTracker();
+    private static volatile boolean mDecodeBeacons;
+    private static final AtomicBoolean mRegionCheckScheduled = new AtomicBoolean();
+    private static volatile RegistrySnapshot mSnapshot;
+
+    // Only touched from the thread processing advertisements.
+    private final AdvertisementReader mReader = new AdvertisementReader();
+    private final BeaconFrame mFrame = new BeaconFrame();
+    private final ArrayList<BeaconRegion> mEntered = new ArrayList<>();
+    private final ArrayList<SmartDevice> mBatchDiscovered = new ArrayList<>();
+    private final ArrayList<SmartDevice> mBatchUpdated = new ArrayList<>();
+    private final DeviceBatch mBatch = new DeviceBatch(mBatchDiscovered, mBatchUpdated);
+    private boolean mInBatch;
+    private volatile IngestQueue mIngestQueue;
+    protected static volatile boolean mFilterOffload = true;
+    private volatile Runnable mRestartHandler;
+    protected static volatile boolean mBeaconFilter = true;
 
     public void forgetDevice(SmartDevice device) {
-        mInvalidDevices.remove(device.getAddress());
-        mDevices.remove(device.getAddress());
-        Stream.of(mListeners).forEach(e->e.onDeviceEvent(ScannerCallback.DEVICE_FORGOTTEN, device));
+        mExpiry.remove(device.getPackedAddress());
+        mInvalidDevices.remove(device.getPackedAddress());
+        mDevices.remove(device.getPackedAddress());
+        RegistrySnapshot snapshot = mSnapshot;
+        if (snapshot != null) snapshot.remove(device.getPackedAddress());
+        mListeners.dispatch(DEVICE_EVENT, ScannerCallback.DEVICE_FORGOTTEN, device);
     }
 
     public void injectDevice(SmartDevice device) {
-        mDevices.remove(device.getAddress());
-        mInvalidDevices.remove(device.getAddress());
-        mDevices.put(device.getAddress(),device);
+        mInvalidDevices.remove(device.getPackedAddress());
+        mDevices.put(device.getPackedAddress(), device);
+        scheduleExpiry(device, device.getPackedAddress(), SystemClock.elapsedRealtime(), true);
+        saveSnapshot(device);
     }
 
     /**
@@ -89,70 +162,580 @@ public abstract class DeviceScanner {
     public abstract boolean isScanning();
 
     public void addIdentifier(Identifier identifier) {
-        mIdentifiers.add(identifier);
-        mInvalidDevices.clear();
+        addIdentifier(identifier, false);
+    }
+
+    /**
+     * Registers an identifier. Its device factory is resolved now, so an identifier whose device class can
+     * not be instantiated is rejected here rather than when a matching device is first seen.
+     * @param identifier The identifier.
+     * @param prewarm Whether to create and discard a device on a background thread, so class loading and
+     *                initialization do not delay the first discovery.
+     * @throws IllegalArgumentException If the device class has no usable constructor and no factory was given.
+     */
+    public void addIdentifier(Identifier identifier, boolean prewarm) {
+        Identifier.DeviceFactory factory = identifier.getFactory();
+        if (prewarm) {
+            Thread thread = new Thread(() -> {
+                try {
+                    factory.create();
+                } catch (RuntimeException e) {
+                    Logging.error("Could not prewarm %s: %s", identifier.getDeviceClass().getSimpleName(), e);
+                }
+            }, "BluetoothSmart-Prewarm");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized (mIdentifiers) {
+            mIdentifiers.add(identifier);
+            mIdentifierIndex = new IdentifierIndex(mIdentifiers);
+        }
+        mInvalidDevices.identifierAdded(identifier);
+        onIdentifiersChanged();
+    }
+
+    /**
+     * @return A copy of the registered identifiers.
+     */
+    protected List<Identifier> getIdentifiers() {
+        synchronized (mIdentifiers) {
+            return new ArrayList<>(mIdentifiers);
+        }
+    }
+
+    /**
+     * Sets the handler used to restart a running scan, such as a ScanScheduler that enforces the platform
+     * limit on scan starts. Without one, the scan is restarted immediately.
+     */
+    void setRestartHandler(Runnable handler) {
+        mRestartHandler = handler;
+    }
+
+    /**
+     * Restarts a running scan with the current parameters.
+     */
+    protected void requestRestart() {
+        Runnable handler = mRestartHandler;
+        if (handler != null) handler.run();
+        else startScan(mScanMode, mScanInterval);
+    }
+
+    /**
+     * Called when the registered identifiers change, so scanners that filter in hardware can update their filters.
+     */
+    protected void onIdentifiersChanged() {
+    }
+
+    /**
+     * Controls whether registered identifiers are pushed to the Bluetooth controller as scan filters, so the
+     * application is only woken for advertisements that could match. Filtering falls back to software if
+     * any identifier can not be expressed as a filter. Devices added with injectDevice() are only seen while
+     * offloading if they also match a registered identifier. Enabled by default.
+     * @param enabled Whether to offload filtering.
+     */
+    public void setFilterOffload(boolean enabled) {
+        if (mFilterOffload == enabled) return;
+        mFilterOffload = enabled;
+        onIdentifiersChanged();
+    }
+
+    /**
+     * Controls whether iBeacon and Eddystone advertisements are let through hardware scan filters while a beacon
+     * listener or region is registered. Without either, beacons are filtered out so they do not wake the
+     * application. Enabled by default.
+     * @param enabled Whether to receive beacon advertisements while offloading filtering.
+     */
+    public void setBeaconFilter(boolean enabled) {
+        if (mBeaconFilter == enabled) return;
+        mBeaconFilter = enabled;
+        onIdentifiersChanged();
+    }
+
+    /**
+     * Replaces the cache used to remember devices that matched no identifier.
+     * @param cache The cache, created with NegativeCache.lru() or NegativeCache.bloom().
+     */
+    public void setNegativeCache(@NonNull NegativeCache cache) {
+        mInvalidDevices = cache;
+    }
+
+    /**
+     * Sets which advertisements from known devices are reported as DEVICE_UPDATED, for devices whose
+     * identifier does not set its own update filter. By default every advertisement that differs in payload
+     * or RSSI is reported.
+     * @param rssiDelta The RSSI change in dBm that is reported even if the payload is unchanged.
+     * @param minInterval The minimum time between reports for one device, in milliseconds.
+     */
+    public void setUpdateFilter(int rssiDelta, long minInterval) {
+        mDefaultRssiDelta = rssiDelta;
+        mDefaultMinUpdateInterval = minInterval;
+    }
+
+    /**
+     * Moves advertisement processing, identifier matching and scan listener callbacks off the Bluetooth callback
+     * thread onto a dedicated ingest thread. Scan callbacks only copy the record into a ring buffer.
+     * Can only be changed while the scan is stopped, as advertisements are processed by one thread at a time.
+     * @param capacity The number of advertisements the queue can hold.
+     * @param policy What to do when the queue is full.
+     * @throws IllegalStateException If a scan is running.
+     */
+    public synchronized void enableIngestQueue(int capacity, @OverflowPolicy int policy) {
+        disableIngestQueue();
+        mIngestQueue = new IngestQueue(capacity, policy, this::processAdvertisement, mStatistics);
+    }
+
+    /**
+     * Processes advertisements on the Bluetooth callback thread again. Advertisements still queued are
+     * processed before this returns.
+     * @throws IllegalStateException If a scan is running.
+     */
+    public synchronized void disableIngestQueue() {
+        if (isScanning()) throw new IllegalStateException("The ingest queue can only be changed while not scanning.");
+        if (mIngestQueue != null) {
+            mIngestQueue.shutdown();
+            mIngestQueue = null;
+        }
+    }
+
+    /**
+     * Sets how long a device may go unseen before it is forgotten and DEVICE_FORGOTTEN is dispatched, for
+     * devices whose identifier does not set its own timeout. Devices are never forgotten automatically by default.
+     * @param timeout The timeout in milliseconds, or 0 to keep devices until forgetDevice() is called.
+     */
+    public void setStaleTimeout(long timeout) {
+        mDefaultStaleTimeout = timeout;
+        if (timeout <= 0) return;
+        long now = SystemClock.elapsedRealtime();
+        long wallNow = System.currentTimeMillis();
+        for (SmartDevice device : mDevices.values()) {
+            long lastSeen = device.getLastSeen() == 0 ? now : now - (wallNow - device.getLastSeen());
+            scheduleExpiry(device, device.getPackedAddress(), lastSeen, false);
+        }
+    }
+
+    /**
+     * Forgets the devices that have not been seen for the given time, once, without enabling automatic expiry.
+     * @param staleTime The time in milliseconds.
+     */
+    public void forgetStale(long staleTime) {
+        long now = System.currentTimeMillis();
+        for (SmartDevice device : mDevices.values()) {
+            if (now - device.getLastSeen() > staleTime) forgetDevice(device);
+        }
     }
 
-    @SuppressWarnings("RedundantIfStatement")
-    void processAdvertisement(byte[] data, BluetoothDevice device, List<UUID> uuids, int rssi) {
-        if (mInvalidDevices.contains(device.getAddress())) return;
+    private static long staleTimeout(SmartDevice device) {
+        Identifier identifier = device.getIdentifier();
+        return identifier == null || identifier.getStaleTimeout() == Identifier.UNSET
+                ? mDefaultStaleTimeout : identifier.getStaleTimeout();
+    }
 
-        boolean isBeacon = data[5] == APPLE_PREFIX[0] &&
-                            data[6] == APPLE_PREFIX[1];
+    private void scheduleExpiry(SmartDevice device, long mac, long now, boolean onlyIfAbsent) {
+        long timeout = staleTimeout(device);
+        if (timeout <= 0 || mac < 0) return;
+        mExpiry.touch(mac, now, timeout, onlyIfAbsent);
+        if (mExpiryScheduled.compareAndSet(false, true)) {
+            mExpiryHandler.postDelayed(mExpire, ExpiryWheel.TICK);
+        }
+    }
 
-        if (mDevices.containsKey(device.getAddress())) {
-            SmartDevice target = mDevices.get(device.getAddress());
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            int expired = mExpiry.advance(SystemClock.elapsedRealtime());
+            for (int i = 0; i < expired; i++) {
+                SmartDevice device = mDevices.get(mExpiry.getExpired(i));
+                if (device != null) forgetDevice(device);
+            }
+            mExpiryScheduled.set(false);
+            if (mExpiry.size() > 0 && mExpiryScheduled.compareAndSet(false, true)) {
+                mExpiryHandler.postDelayed(this, ExpiryWheel.TICK);
+            }
+        }
+    };
+
+    /**
+     * Keeps a snapshot of known devices in a memory mapped file, and restores the devices it holds. Restored
+     * devices are created when first needed: when listed, looked up, or heard from again, at which point
+     * DEVICE_DISCOVERED is dispatched for them. Devices are only restored once an identifier for their class
+     * has been added.
+     * @param file The snapshot file, which is created if needed.
+     * @param capacity The most devices the snapshot holds; devices beyond it are not saved.
+     */
+    public void enableSnapshot(@NonNull File file, int capacity) {
+        try {
+            mSnapshot = RegistrySnapshot.open(file, capacity);
+            Logging.notice("Device snapshot holds %d devices.", mSnapshot.getPendingCount());
+        } catch (IOException e) {
+            Logging.error("Could not open device snapshot: %s", e);
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Stops saving devices. The snapshot file is left as it is.
+     */
+    public void disableSnapshot() {
+        RegistrySnapshot snapshot = mSnapshot;
+        mSnapshot = null;
+        if (snapshot != null) snapshot.flush();
+    }
+
+    // Creates a device from its snapshot record, if it has one and its class has an identifier. Devices restored
+    // outside of a scan result are announced here, on the main looper; scan results announce them once the
+    // advertisement is applied.
+    private SmartDevice restore(long mac, BluetoothDevice device, boolean announce) {
+        RegistrySnapshot snapshot = mSnapshot;
+        if (snapshot == null || mac < 0 || !snapshot.isPending(mac)) return null;
+        RegistrySnapshot.Entry entry = new RegistrySnapshot.Entry();
+        if (!snapshot.read(mac, entry)) return null;
+
+        Identifier identifier = null;
+        synchronized (mIdentifiers) {
+            for (Identifier candidate : mIdentifiers) {
+                if (RegistrySnapshot.classHash(candidate.getDeviceClass()) == entry.mClassHash) {
+                    identifier = candidate;
+                    break;
+                }
+            }
+        }
+        if (identifier == null) return null;
+
+        long now = SystemClock.elapsedRealtime();
+        long age = System.currentTimeMillis() - entry.mLastSeen;
+        SmartDevice target;
+        try {
+            target = identifier.getFactory().create();
+        } catch (RuntimeException e) {
+            Logging.error("Could not restore %s: %s", identifier.getDeviceClass().getSimpleName(), e);
+            snapshot.remove(mac);
+            return null;
+        }
+        if (staleTimeout(target) > 0 && age >= staleTimeout(target)) {
+            snapshot.remove(mac);
+            return null;
+        }
+        if (device == null) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter == null) return null;
+            device = adapter.getRemoteDevice(Utils.macToString(mac));
+        }
+
+        target.init(device, identifier);
+        target.restoreAdvertisement(entry.mData, entry.mLength, entry.mRssi, entry.mLastSeen);
+        SmartDevice existing = mDevices.putIfAbsent(mac, target);
+        if (existing != null) return existing;
+        snapshot.restored(mac);
+        scheduleExpiry(target, mac, now - Math.max(age, 0), false);
+        if (announce) {
+            mStatistics.mDiscovered.incrementAndGet();
+            // Called from app threads, so the event is posted rather than delivered inside the caller's lookup or
+            // added to a batch the scan callback is building.
+            mExpiryHandler.post(() -> mListeners.dispatch(DEVICE_EVENT, ScannerCallback.DEVICE_DISCOVERED, target));
+        }
+        return target;
+    }
+
+    private void restoreAll() {
+        RegistrySnapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.getPendingCount() == 0) return;
+        for (long mac : snapshot.getPendingAddresses()) restore(mac, null, true);
+    }
+
+    public ScanStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Hands an advertisement from a scan callback to the scanner, either directly or through the ingest queue.
+     */
+    void submitAdvertisement(byte[] data, BluetoothDevice device, int rssi) {
+        IngestQueue queue = mIngestQueue;
+        if (queue == null) {
+            processAdvertisement(data, data.length, device, rssi);
+        } else {
+            queue.offer(data, device, Utils.macToLong(device.getAddress()), rssi);
+        }
+    }
+
+    void processAdvertisement(byte[] data, int length, BluetoothDevice device, int rssi) {
+        long mac = Utils.macToLong(device.getAddress());
+        long now = SystemClock.elapsedRealtime();
+        mStatistics.mReceived.incrementAndGet();
+        SmartDevice known = mDevices.get(mac);
+        boolean restored = false;
+        if (known == null && mSnapshot != null) {
+            known = restore(mac, device, false);
+            restored = known != null;
+        }
+        AdvertisementReader reader = null;
+
+        // Beacons are decoded before the negative cache, as beacons rarely match an identifier.
+        if (mDecodeBeacons) {
+            reader = mReader.reset(data, length);
+            if (BeaconParser.parse(reader, mac, rssi, mFrame)) onBeaconFrame(mFrame, known, now);
+        }
+
+        if (known == null && mInvalidDevices.contains(mac, now)) {
+            mStatistics.mRejected.incrementAndGet();
+            return;
+        }
+
+        if (reader == null) reader = mReader.reset(data, length);
+        boolean isBeacon = reader.getManufacturerId() == APPLE_COMPANY_ID;
+
+        if (known != null) {
+            scheduleExpiry(known, mac, now, false);
             if (isBeacon) {
-                target.notifyEvent(SmartDevice.EVENT_NEW_BEACON);
-                Stream.of(mListeners).forEach(e->e.onDeviceEvent(ScannerCallback.DEVICE_BEACONED, target));
+                if (restored) {
+                    mStatistics.mDiscovered.incrementAndGet();
+                    saveSnapshot(known);
+                    dispatch(ScannerCallback.DEVICE_DISCOVERED, known);
+                }
+                known.getSignal().update(rssi, now);
+                known.notifyEvent(SmartDevice.EVENT_NEW_BEACON);
+                dispatch(ScannerCallback.DEVICE_BEACONED, known);
             } else {
-                target.newAdvertisement(data,rssi);
-                Stream.of(mListeners).forEach(e->e.onDeviceEvent(ScannerCallback.DEVICE_UPDATED, target));
+                known.newAdvertisement(data, length, rssi);
+                updateTxPower(known, reader);
+                boolean report = shouldReport(known, now);
+                if (restored) {
+                    mStatistics.mDiscovered.incrementAndGet();
+                    saveSnapshot(known);
+                    dispatch(ScannerCallback.DEVICE_DISCOVERED, known);
+                } else if (report) {
+                    mStatistics.mUpdated.incrementAndGet();
+                    saveSnapshot(known);
+                    dispatch(ScannerCallback.DEVICE_UPDATED, known);
+                } else {
+                    mStatistics.mSuppressed.incrementAndGet();
+                }
             }
         } else if (!isBeacon) {
-            Optional<Identifier> identifier = Stream.of(mIdentifiers).filter(id -> {
-                if (id.getName() != null && !id.getName().equals(device.getName())) return false;
-                if (!Stream.of(id.getUuids()).allMatch(uuid->
-                     Stream.of(uuids).anyMatch(duuid-> duuid != null && duuid.equals(uuid)))) {
-                    return false;
-                }
-                if (id.getByteId() != null && !id.getByteId().checkBytes(data)) return false;
-                return true;
-            }).findFirst();
+            Identifier identifier = mIdentifierIndex.match(reader, device);
 
-            if (identifier.isPresent()) {
+            if (identifier != null) {
+                SmartDevice target;
                 try {
-                    Class c = identifier.get().getDeviceClass();
-                    SmartDevice target = (SmartDevice) c.newInstance();
-                    target.init(device);
-                    target.newAdvertisement(data,rssi);
-                    mDevices.put(device.getAddress(), target);
-
-                    Stream.of(mListeners).forEach(e->e.onDeviceEvent(ScannerCallback.DEVICE_DISCOVERED, target));
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    target = identifier.getFactory().create();
+                } catch (RuntimeException e) {
+                    Logging.error("Could not create %s: %s", identifier.getDeviceClass().getSimpleName(), e);
+                    mInvalidDevices.add(mac, NegativeCache.signature(reader, device.getName()), now);
+                    return;
                 }
+                target.init(device, identifier);
+                target.newAdvertisement(data, length, rssi);
+                updateTxPower(target, reader);
+                shouldReport(target, now);
+                mDevices.put(mac, target);
+                scheduleExpiry(target, mac, now, false);
+                mStatistics.mDiscovered.incrementAndGet();
+                saveSnapshot(target);
+
+                dispatch(ScannerCallback.DEVICE_DISCOVERED, target);
             } else {
-                mInvalidDevices.add(device.getAddress());
+                mStatistics.mRejected.incrementAndGet();
+                mInvalidDevices.add(mac, NegativeCache.signature(reader, device.getName()), now);
             }
         }
 
     }
 
+    private void onBeaconFrame(BeaconFrame frame, SmartDevice known, long now) {
+        if (known != null) {
+            if (frame.getType() == BeaconFrame.TYPE_IBEACON || frame.getType() == BeaconFrame.TYPE_EDDYSTONE_UID) {
+                known.getSignal().setReferencePower(frame.getReferencePower());
+            }
+            known.onBeaconFrame(frame);
+        }
+
+        mBeaconListeners.dispatch(BEACON_FRAME, 0, frame);
+
+        mRegions.onFrame(frame, now, mEntered);
+        if (mEntered.isEmpty()) return;
+        for (int i = 0; i < mEntered.size(); i++) {
+            mRegionListeners.dispatch(REGION_ENTERED, 0, mEntered.get(i));
+        }
+        mEntered.clear();
+        if (mRegionCheckScheduled.compareAndSet(false, true)) {
+            mExpiryHandler.postDelayed(mRegionCheck, ExpiryWheel.TICK);
+        }
+    }
+
+    private final Runnable mRegionCheck = new Runnable() {
+        private final ArrayList<BeaconRegion> mExited = new ArrayList<>();
+
+        @Override
+        public void run() {
+            mRegions.expire(SystemClock.elapsedRealtime(), mExited);
+            for (int i = 0; i < mExited.size(); i++) {
+                mRegionListeners.dispatch(REGION_EXITED, 0, mExited.get(i));
+            }
+            mExited.clear();
+            mRegionCheckScheduled.set(false);
+            if (mRegions.hasOccupiedRegions() && mRegionCheckScheduled.compareAndSet(false, true)) {
+                mExpiryHandler.postDelayed(this, ExpiryWheel.TICK);
+            }
+        }
+    };
+
+    /**
+     * Receives every decoded beacon frame. Registering a beacon listener or region enables beacon decoding.
+     * Frames are reused, so beacon listeners are always called on the thread processing advertisements.
+     */
+    public void addBeaconListener(@NonNull BeaconCallback listener) {
+        mBeaconListeners.add(listener);
+        updateBeaconDecoding();
+    }
+
+    public void removeBeaconListener(@NonNull BeaconCallback listener) {
+        mBeaconListeners.remove(listener);
+        updateBeaconDecoding();
+    }
+
+    public void addRegionListener(@NonNull RegionCallback listener) {
+        mRegionListeners.add(listener);
+    }
+
+    /**
+     * Adds a region listener that is called on the given executor.
+     */
+    public void addRegionListener(@NonNull RegionCallback listener, @NonNull Executor executor) {
+        mRegionListeners.add(listener, executor);
+    }
+
+    public void removeRegionListener(@NonNull RegionCallback listener) {
+        mRegionListeners.remove(listener);
+    }
+
+    /**
+     * Starts monitoring a beacon region. Region listeners are notified when it is entered and exited.
+     */
+    public void addRegion(@NonNull BeaconRegion region) {
+        mRegions.add(region);
+        updateBeaconDecoding();
+    }
+
+    /**
+     * Stops monitoring a beacon region. If the region was occupied, listeners are notified that it was exited.
+     */
+    public void removeRegion(@NonNull BeaconRegion region) {
+        if (mRegions.remove(region)) {
+            mRegionListeners.dispatch(REGION_EXITED, 0, region);
+        }
+        updateBeaconDecoding();
+    }
+
+    private void updateBeaconDecoding() {
+        boolean decode = !mBeaconListeners.isEmpty() || !mRegions.isEmpty();
+        if (mDecodeBeacons == decode) return;
+        mDecodeBeacons = decode;
+        // Beacon scan filters are only installed while beacons are wanted.
+        if (mBeaconFilter) onIdentifiersChanged();
+    }
+
+    /**
+     * @return true if a beacon listener or region is registered, so beacon advertisements are wanted.
+     */
+    protected static boolean isDecodingBeacons() {
+        return mDecodeBeacons;
+    }
+
+    private static void saveSnapshot(SmartDevice device) {
+        RegistrySnapshot snapshot = mSnapshot;
+        if (snapshot != null) snapshot.write(device);
+    }
+
+    private static void updateTxPower(SmartDevice device, AdvertisementReader reader) {
+        int txPower = reader.getTxPower();
+        if (txPower != AdvertisementReader.NO_TX_POWER) device.getSignal().setAdvertisedTxPower(txPower);
+    }
+
+    private static boolean shouldReport(SmartDevice device, long now) {
+        Identifier identifier = device.getIdentifier();
+        int rssiDelta = identifier == null || identifier.getRssiDelta() == Identifier.UNSET
+                ? mDefaultRssiDelta : identifier.getRssiDelta();
+        long minInterval = identifier == null || identifier.getMinUpdateInterval() == Identifier.UNSET
+                ? mDefaultMinUpdateInterval : identifier.getMinUpdateInterval();
+        return device.shouldReportUpdate(rssiDelta, minInterval, now);
+    }
+
+    /**
+     * Starts collecting discovered and updated devices instead of notifying listeners for each one.
+     * Has no effect when the ingest queue is enabled, as advertisements are then processed on the ingest thread.
+     */
+    void beginBatch() {
+        mInBatch = mIngestQueue == null;
+    }
+
+    /**
+     * Delivers the devices collected since beginBatch() as a single notification.
+     */
+    void endBatch() {
+        if (!mInBatch) return;
+        mInBatch = false;
+        if (mBatchDiscovered.isEmpty() && mBatchUpdated.isEmpty()) return;
+
+        try {
+            // Listeners on executors outlive the batch, so they are given their own copy of it.
+            DeviceBatch batch = mListeners.hasExecutors()
+                    ? new DeviceBatch(new ArrayList<>(mBatchDiscovered), new ArrayList<>(mBatchUpdated))
+                    : mBatch;
+            mListeners.dispatch(DEVICE_BATCH, 0, batch);
+        } finally {
+            mBatchDiscovered.clear();
+            mBatchUpdated.clear();
+        }
+    }
+
+    private static final class DeviceBatch {
+        final List<SmartDevice> mDiscovered;
+        final List<SmartDevice> mUpdated;
+
+        DeviceBatch(List<SmartDevice> discovered, List<SmartDevice> updated) {
+            mDiscovered = Collections.unmodifiableList(discovered);
+            mUpdated = Collections.unmodifiableList(updated);
+        }
+    }
+
+    private void dispatch(@ScannerCallback.DeviceEvent int event, SmartDevice device) {
+        if (mInBatch) {
+            if (event == ScannerCallback.DEVICE_DISCOVERED) {
+                mBatchDiscovered.add(device);
+                return;
+            } else if (event == ScannerCallback.DEVICE_UPDATED) {
+                mBatchUpdated.add(device);
+                return;
+            }
+        }
+        mListeners.dispatch(DEVICE_EVENT, event, device);
+    }
+
     public List<SmartDevice> getAllDevices() {
-        return Collections.unmodifiableList(new ArrayList<>(mDevices.values()));
+        restoreAll();
+        return Collections.unmodifiableList(mDevices.values());
     }
 
     public void addScanListener(@NonNull ScannerCallback listener) {
         mListeners.add(listener);
     }
 
+    /**
+     * Adds a scan listener that is called on the given executor, so a slow listener does not hold up scanning.
+     */
+    public void addScanListener(@NonNull ScannerCallback listener, @NonNull Executor executor) {
+        mListeners.add(listener, executor);
+    }
+
     public void removeScanListener(@NonNull ScannerCallback listener) {
         mListeners.remove(listener);
     }
 
     public SmartDevice getDeviceByMacAddress(String macAddress) {
-        return mDevices.get(macAddress);
+        long mac = Utils.macToLong(macAddress);
+        SmartDevice device = mDevices.get(mac);
+        return device != null ? device : restore(mac, null, true);
     }
 }
 
@@ -0,0 +1,214 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel that tracks when devices go stale.
+ *
+ * Four levels of 64 slots cover one second ticks up to about six months. Entries are kept in intrusive
+ * linked lists over primitive arrays. Seeing a device again only updates its last seen time; the entry is
+ * left in its slot, and when the slot comes due the real deadline is recomputed and the entry either
+ * expires or is placed again. So rescheduling on every advertisement is constant time, and entries only
+ * move when their deadline comes earlier.
+ */
+final class ExpiryWheel {
+    static final long TICK = 1000;
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+    private static final int NONE = -1;
+
+    private final int[] mHeads = new int[LEVELS * SLOTS];
+    private final LongIndex mIndex = new LongIndex(64);
+
+    // Entries
+    private long[] mMac = new long[64];
+    private long[] mLastSeen = new long[64];
+    private long[] mTimeout = new long[64];
+    private int[] mNext = new int[64];
+    private int[] mPrev = new int[64];
+    private int[] mSlot = new int[64];
+    private int mFree = NONE;
+    private int mAllocated;
+
+    private long mTick = Long.MIN_VALUE;
+    private long[] mExpired = new long[16];
+    private int mExpiredCount;
+
+    ExpiryWheel() {
+        Arrays.fill(mHeads, NONE);
+    }
+
+    synchronized int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * Records that a device was seen.
+     * @param mac The packed MAC address.
+     * @param lastSeen When the device was seen, in elapsed realtime milliseconds.
+     * @param timeout How long after lastSeen the device expires.
+     * @param onlyIfAbsent If true, devices that are already tracked are left untouched.
+     */
+    synchronized void touch(long mac, long lastSeen, long timeout, boolean onlyIfAbsent) {
+        if (mTick == Long.MIN_VALUE) mTick = lastSeen / TICK;
+        int entry = mIndex.get(mac);
+        if (entry != LongIndex.MISSING) {
+            if (onlyIfAbsent) return;
+            long previous = deadline(entry);
+            mLastSeen[entry] = lastSeen;
+            mTimeout[entry] = timeout;
+            // Entries only fire late if their deadline moved earlier, such as when the timeout was shortened.
+            if (deadline(entry) < previous) {
+                unlink(entry);
+                place(entry, mTick + 1);
+            }
+            return;
+        }
+
+        entry = allocate();
+        mMac[entry] = mac;
+        mLastSeen[entry] = lastSeen;
+        mTimeout[entry] = timeout;
+        mIndex.put(mac, entry);
+        place(entry, mTick + 1);
+    }
+
+    synchronized void remove(long mac) {
+        int entry = mIndex.remove(mac);
+        if (entry == LongIndex.MISSING) return;
+        unlink(entry);
+        release(entry);
+    }
+
+    /**
+     * Advances the wheel and collects the devices that expired.
+     * @param now The current elapsed realtime, in milliseconds.
+     * @return The number of expired devices, available from getExpired().
+     */
+    synchronized int advance(long now) {
+        mExpiredCount = 0;
+        if (mTick == Long.MIN_VALUE) return 0;
+        long target = now / TICK;
+        while (mTick < target) {
+            if (mIndex.size() == 0) {
+                mTick = target;
+                break;
+            }
+            tick();
+        }
+        return mExpiredCount;
+    }
+
+    /**
+     * @return An expired device from the last call to advance(). Only valid on the thread that advanced the wheel.
+     */
+    long getExpired(int index) {
+        return mExpired[index];
+    }
+
+    private void tick() {
+        long t = ++mTick;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((t & ((1L << (BITS * level)) - 1)) != 0) break;
+            cascade(level * SLOTS + (int) ((t >>> (BITS * level)) & MASK), t);
+        }
+
+        int slot = (int) (t & MASK);
+        int entry = mHeads[slot];
+        mHeads[slot] = NONE;
+        while (entry != NONE) {
+            int next = mNext[entry];
+            if (deadline(entry) <= t) {
+                mIndex.remove(mMac[entry]);
+                if (mExpiredCount == mExpired.length) mExpired = Arrays.copyOf(mExpired, mExpiredCount * 2);
+                mExpired[mExpiredCount++] = mMac[entry];
+                release(entry);
+            } else {
+                place(entry, t + 1);
+            }
+            entry = next;
+        }
+    }
+
+    private void cascade(int slot, long t) {
+        int entry = mHeads[slot];
+        mHeads[slot] = NONE;
+        while (entry != NONE) {
+            int next = mNext[entry];
+            place(entry, t);
+            entry = next;
+        }
+    }
+
+    private long deadline(int entry) {
+        return (mLastSeen[entry] + mTimeout[entry] + TICK - 1) / TICK;
+    }
+
+    // Files an entry under the slot for its deadline, but no earlier than the given tick.
+    private void place(int entry, long earliest) {
+        long deadline = Math.max(deadline(entry), earliest);
+        long delta = deadline - mTick;
+        if (delta >= SPAN) deadline = mTick + SPAN - 1;
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        int slot = level * SLOTS + (int) ((deadline >>> (BITS * level)) & MASK);
+
+        mSlot[entry] = slot;
+        mPrev[entry] = NONE;
+        mNext[entry] = mHeads[slot];
+        if (mHeads[slot] != NONE) mPrev[mHeads[slot]] = entry;
+        mHeads[slot] = entry;
+    }
+
+    private void unlink(int entry) {
+        int prev = mPrev[entry];
+        int next = mNext[entry];
+        if (prev == NONE) mHeads[mSlot[entry]] = next;
+        else mNext[prev] = next;
+        if (next != NONE) mPrev[next] = prev;
+    }
+
+    private int allocate() {
+        if (mFree != NONE) {
+            int entry = mFree;
+            mFree = mNext[entry];
+            return entry;
+        }
+        if (mAllocated == mMac.length) {
+            int size = mAllocated * 2;
+            mMac = Arrays.copyOf(mMac, size);
+            mLastSeen = Arrays.copyOf(mLastSeen, size);
+            mTimeout = Arrays.copyOf(mTimeout, size);
+            mNext = Arrays.copyOf(mNext, size);
+            mPrev = Arrays.copyOf(mPrev, size);
+            mSlot = Arrays.copyOf(mSlot, size);
+        }
+        return mAllocated++;
+    }
+
+    private void release(int entry) {
+        mNext[entry] = mFree;
+        mFree = entry;
+    }
+}
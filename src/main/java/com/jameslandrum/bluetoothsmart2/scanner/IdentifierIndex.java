@@ -0,0 +1,263 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
+
+import java.util.*;
+
+/**
+ * Immutable lookup structure compiled from the registered identifiers.
+ * Each identifier is filed under the most selective key it declares (a service UUID, then its name, then its
+ * manufacturer), so matching an advertisement only evaluates identifiers that share a key with it. Identifiers
+ * that declare none of these are kept aside and evaluated for every advertisement.
+ */
+final class IdentifierIndex {
+    static final IdentifierIndex EMPTY = new IdentifierIndex(Collections.<Identifier>emptyList());
+
+    private static final Identifier[] NONE = new Identifier[0];
+
+    private final UuidBuckets mByUuid;
+    private final IntBuckets mByName;
+    private final IntBuckets mByManufacturer;
+    private final Identifier[] mUnkeyed;
+
+    IdentifierIndex(Collection<Identifier> identifiers) {
+        LinkedHashMap<UUID, List<Identifier>> byUuid = new LinkedHashMap<>();
+        LinkedHashMap<Integer, List<Identifier>> byName = new LinkedHashMap<>();
+        LinkedHashMap<Integer, List<Identifier>> byManufacturer = new LinkedHashMap<>();
+        ArrayList<Identifier> unkeyed = new ArrayList<>();
+
+        for (Identifier id : identifiers) {
+            if (!id.getUuids().isEmpty()) {
+                group(byUuid, id.getUuids().get(0), id);
+            } else if (id.getName() != null) {
+                group(byName, id.getName().hashCode(), id);
+            } else if (id.getManufacturerId() != Identifier.NO_MANUFACTURER) {
+                group(byManufacturer, id.getManufacturerId(), id);
+            } else {
+                unkeyed.add(id);
+            }
+        }
+
+        mByUuid = new UuidBuckets(byUuid);
+        mByName = new IntBuckets(byName);
+        mByManufacturer = new IntBuckets(byManufacturer);
+        mUnkeyed = unkeyed.toArray(NONE);
+    }
+
+    private static <K> void group(Map<K, List<Identifier>> map, K key, Identifier id) {
+        List<Identifier> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        list.add(id);
+    }
+
+    boolean isEmpty() {
+        return mByUuid.isEmpty() && mByName.isEmpty() && mByManufacturer.isEmpty() && mUnkeyed.length == 0;
+    }
+
+    /**
+     * Finds the first identifier matching an advertisement.
+     * @param reader The reader, reset to the advertisement.
+     * @param device The advertising device.
+     * @return The matching identifier, or null if none match.
+     */
+    Identifier match(AdvertisementReader reader, BluetoothDevice device) {
+        Identifier result;
+
+        if (!mByUuid.isEmpty()) {
+            for (int i = 0; i < reader.getServiceUuidCount(); i++) {
+                result = firstMatch(mByUuid.get(reader.getServiceUuidMsb(i), reader.getServiceUuidLsb(i)), reader, device);
+                if (result != null) return result;
+            }
+        }
+
+        if (!mByName.isEmpty()) {
+            // Identifiers accept either the advertised local name or the cached device name, so check both buckets.
+            String name = device.getName();
+            int deviceHash = name == null ? 0 : name.hashCode();
+            if (reader.hasLocalName()) {
+                int hash = reader.localNameHash();
+                result = firstMatch(mByName.get(hash), reader, device);
+                if (result != null) return result;
+                if (name != null && hash != deviceHash) {
+                    result = firstMatch(mByName.get(deviceHash), reader, device);
+                    if (result != null) return result;
+                }
+            } else if (name != null) {
+                result = firstMatch(mByName.get(deviceHash), reader, device);
+                if (result != null) return result;
+            }
+        }
+
+        if (!mByManufacturer.isEmpty() && reader.getManufacturerId() != AdvertisementReader.NO_MANUFACTURER) {
+            result = firstMatch(mByManufacturer.get(reader.getManufacturerId()), reader, device);
+            if (result != null) return result;
+        }
+
+        return firstMatch(mUnkeyed, reader, device);
+    }
+
+    private static Identifier firstMatch(Identifier[] candidates, AdvertisementReader reader, BluetoothDevice device) {
+        for (Identifier candidate : candidates) {
+            if (matches(candidate, reader, device)) return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates every predicate of an identifier against an advertisement.
+     */
+    static boolean matches(Identifier id, AdvertisementReader reader, BluetoothDevice device) {
+        if (id.getName() != null && !reader.localNameEquals(id.getName())
+                && !id.getName().equals(device.getName())) return false;
+        ArrayList<UUID> uuids = id.getUuids();
+        for (int i = 0; i < uuids.size(); i++) {
+            if (!reader.hasServiceUuid(uuids.get(i))) return false;
+        }
+        if (id.getManufacturerId() != Identifier.NO_MANUFACTURER) {
+            if (id.getManufacturerId() != reader.getManufacturerId()) return false;
+            if (id.getManufacturerData() != null && !maskedEquals(reader.getData(), reader.getManufacturerDataOffset(),
+                    reader.getManufacturerDataLength(), id.getManufacturerData(), id.getManufacturerDataMask())) {
+                return false;
+            }
+        }
+        if (id.getServiceDataUuid() != null) {
+            UUID uuid = id.getServiceDataUuid();
+            int index = reader.findServiceData(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (index < 0) return false;
+            if (id.getServiceData() != null && !maskedEquals(reader.getData(), reader.getServiceDataOffset(index),
+                    reader.getServiceDataLength(index), id.getServiceData(), id.getServiceDataMask())) {
+                return false;
+            }
+        }
+        if (id.getByteId() != null && !id.getByteId().checkBytes(exactRecord(reader))) return false;
+        return true;
+    }
+
+    // The reader may wrap a reused buffer that is longer than the record, so user code gets an exact copy.
+    private static byte[] exactRecord(AdvertisementReader reader) {
+        byte[] data = reader.getData();
+        return data.length == reader.getLength() ? data : Arrays.copyOf(data, reader.getLength());
+    }
+
+    private static boolean maskedEquals(byte[] record, int offset, int length, byte[] expected, byte[] mask) {
+        if (length < expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            int m = mask == null ? 0xFF : mask[i] & 0xFF;
+            if ((record[offset + i] & m) != (expected[i] & m)) return false;
+        }
+        return true;
+    }
+
+    private static int mix(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return h * 0x9E3779B9;
+    }
+
+    private static int tableSize(int entries) {
+        int size = 2;
+        while (size < entries * 2) size <<= 1;
+        return size;
+    }
+
+    /**
+     * Open addressed table of identifier buckets keyed by a 128-bit UUID.
+     */
+    private static final class UuidBuckets {
+        private final long[] mMsb;
+        private final long[] mLsb;
+        private final Identifier[][] mBuckets;
+        private final int mMask;
+        private final int mCount;
+
+        UuidBuckets(Map<UUID, List<Identifier>> groups) {
+            int size = tableSize(groups.size());
+            mMsb = new long[size];
+            mLsb = new long[size];
+            mBuckets = new Identifier[size][];
+            mMask = size - 1;
+            mCount = groups.size();
+
+            for (Map.Entry<UUID, List<Identifier>> entry : groups.entrySet()) {
+                long msb = entry.getKey().getMostSignificantBits();
+                long lsb = entry.getKey().getLeastSignificantBits();
+                int slot = mix(msb ^ lsb) & mMask;
+                while (mBuckets[slot] != null) slot = (slot + 1) & mMask;
+                mMsb[slot] = msb;
+                mLsb[slot] = lsb;
+                mBuckets[slot] = entry.getValue().toArray(NONE);
+            }
+        }
+
+        boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        Identifier[] get(long msb, long lsb) {
+            int slot = mix(msb ^ lsb) & mMask;
+            while (mBuckets[slot] != null) {
+                if (mMsb[slot] == msb && mLsb[slot] == lsb) return mBuckets[slot];
+                slot = (slot + 1) & mMask;
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Open addressed table of identifier buckets keyed by an int.
+     */
+    private static final class IntBuckets {
+        private final int[] mKeys;
+        private final Identifier[][] mBuckets;
+        private final int mMask;
+        private final int mCount;
+
+        IntBuckets(Map<Integer, List<Identifier>> groups) {
+            int size = tableSize(groups.size());
+            mKeys = new int[size];
+            mBuckets = new Identifier[size][];
+            mMask = size - 1;
+            mCount = groups.size();
+
+            for (Map.Entry<Integer, List<Identifier>> entry : groups.entrySet()) {
+                int key = entry.getKey();
+                int slot = mix(key) & mMask;
+                while (mBuckets[slot] != null) slot = (slot + 1) & mMask;
+                mKeys[slot] = key;
+                mBuckets[slot] = entry.getValue().toArray(NONE);
+            }
+        }
+
+        boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        Identifier[] get(int key) {
+            int slot = mix(key) & mMask;
+            while (mBuckets[slot] != null) {
+                if (mKeys[slot] == key) return mBuckets[slot];
+                slot = (slot + 1) & mMask;
+            }
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import com.jameslandrum.bluetoothsmart2.Logging;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring buffer that decouples the scan callback from advertisement processing.
+ *
+ * The scan callback copies each record into a preallocated slot and returns. A dedicated consumer thread
+ * drains the ring and hands records to the scanner. Only the producer ever writes slots; the producer and
+ * consumer race for the oldest slot with a compare-and-set on the head sequence, so when the producer drops
+ * the oldest record to make room, a consumer that was copying it simply discards its copy.
+ */
+final class IngestQueue {
+    private static final int SLOT_SIZE = 62;
+    private static final int DRAIN_BATCH = 64;
+
+    interface Sink {
+        void onAdvertisement(byte[] data, int length, BluetoothDevice device, int rssi);
+    }
+
+    private final int mMask;
+    private final int mPolicy;
+    private final Sink mSink;
+    private final ScanStatistics mStatistics;
+
+    // Slots, written only by the producer
+    private final byte[][] mData;
+    private final int[] mLength;
+    private final BluetoothDevice[] mDevice;
+    private final long[] mMac;
+    private final int[] mRssi;
+    private final long[] mTimestamp;
+    private final long[] mSequence;
+    private final AtomicIntegerArray mSuperseded;
+
+    private final AtomicLong mHead = new AtomicLong();    // Next sequence to consume
+    private final AtomicLong mTail = new AtomicLong();    // Next sequence to produce
+    private final LongIndex mLatest;                      // Producer only: device to slot of its newest record
+
+    private final Thread mConsumer;
+    private volatile boolean mWaiting;
+    private volatile boolean mRunning = true;
+
+    IngestQueue(int capacity, @DeviceScanner.OverflowPolicy int policy, Sink sink, ScanStatistics statistics) {
+        int size = 2;
+        while (size < capacity) size <<= 1;
+        mMask = size - 1;
+        mPolicy = policy;
+        mSink = sink;
+        mStatistics = statistics;
+
+        mData = new byte[size][SLOT_SIZE];
+        mLength = new int[size];
+        mDevice = new BluetoothDevice[size];
+        mMac = new long[size];
+        mRssi = new int[size];
+        mTimestamp = new long[size];
+        mSequence = new long[size];
+        mSuperseded = new AtomicIntegerArray(size);
+        mLatest = new LongIndex(size);
+
+        mConsumer = new Thread(this::drain, "BluetoothSmart-Ingest");
+        mConsumer.setDaemon(true);
+        mConsumer.start();
+    }
+
+    /**
+     * Copies an advertisement into the ring. Must only be called from a single producer thread.
+     */
+    void offer(byte[] data, BluetoothDevice device, long mac, int rssi) {
+        long tail = mTail.get();
+
+        if (tail - mHead.get() > mMask) {
+            if (mPolicy == DeviceScanner.OVERFLOW_DROP_NEWEST) {
+                mStatistics.mDropped.incrementAndGet();
+                return;
+            }
+            long head = mHead.get();
+            if (tail - head > mMask && mHead.compareAndSet(head, head + 1)) {
+                if (mSuperseded.get((int) head & mMask) == 0) mStatistics.mDropped.incrementAndGet();
+            }
+        }
+
+        // Malformed addresses pack to -1, which LongIndex can not hold, so they are never conflated.
+        boolean conflate = mPolicy == DeviceScanner.OVERFLOW_CONFLATE && mac >= 0;
+        if (conflate) {
+            int previous = mLatest.get(mac);
+            if (previous != LongIndex.MISSING && mMac[previous] == mac && mSequence[previous] >= mHead.get()) {
+                mSuperseded.set(previous, 1);
+                mStatistics.mConflated.incrementAndGet();
+            }
+        }
+
+        int slot = (int) tail & mMask;
+        int length = data.length;
+        if (mData[slot].length < length) mData[slot] = new byte[length];
+        System.arraycopy(data, 0, mData[slot], 0, length);
+        mLength[slot] = length;
+        mDevice[slot] = device;
+        mMac[slot] = mac;
+        mRssi[slot] = rssi;
+        mTimestamp[slot] = System.nanoTime();
+        mSequence[slot] = tail;
+        mSuperseded.set(slot, 0);
+
+        if (conflate) {
+            if (mLatest.size() > (mMask + 1) * 4) mLatest.clear();
+            mLatest.put(mac, slot);
+        }
+
+        mTail.set(tail + 1);
+        if (mWaiting) LockSupport.unpark(mConsumer);
+    }
+
+    /**
+     * Stops the consumer once it has processed every queued record, and waits for it to finish. The producer
+     * must have stopped offering.
+     */
+    void shutdown() {
+        mRunning = false;
+        LockSupport.unpark(mConsumer);
+        if (Thread.currentThread() == mConsumer) return;
+        try {
+            mConsumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        byte[] buffer = new byte[SLOT_SIZE];
+
+        while (true) {
+            int drained = 0;
+            long head;
+            while (drained < DRAIN_BATCH && (head = mHead.get()) < mTail.get()) {
+                int slot = (int) head & mMask;
+                boolean superseded = mSuperseded.get(slot) != 0;
+                byte[] data = mData[slot];
+                int length = Math.min(mLength[slot], data.length);
+                if (buffer.length < length) buffer = new byte[length];
+                System.arraycopy(data, 0, buffer, 0, length);
+                BluetoothDevice device = mDevice[slot];
+                int rssi = mRssi[slot];
+                long timestamp = mTimestamp[slot];
+
+                // Lost the slot to the producer dropping it; our copy may be torn.
+                if (!mHead.compareAndSet(head, head + 1)) continue;
+                drained++;
+                if (superseded) continue;
+
+                mStatistics.recordLag(System.nanoTime() - timestamp);
+                try {
+                    mSink.onAdvertisement(buffer, length, device, rssi);
+                } catch (Exception e) {
+                    Logging.error("Advertisement processing failed: %s", e.getMessage());
+                }
+            }
+
+            if (drained == 0) {
+                if (!mRunning) return;
+                mWaiting = true;
+                if (mRunning && mHead.get() >= mTail.get()) LockSupport.park(this);
+                mWaiting = false;
+            }
+        }
+    }
+}
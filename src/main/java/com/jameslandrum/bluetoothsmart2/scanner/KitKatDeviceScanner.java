@@ -19,9 +19,6 @@ package com.jameslandrum.bluetoothsmart2.scanner;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
-import java.util.ArrayList;
-import java.util.UUID;
-
 /**
  * Scanner for API 19
  */
@@ -54,7 +51,6 @@ public class KitKatDeviceScanner extends DeviceScanner implements BluetoothAdapt
 
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        // TODO: This needs to somehow extract the UUIDs for processing.
-        processAdvertisement(scanRecord, device, new ArrayList<>(), rssi);
+        submitAdvertisement(scanRecord, device, rssi);
     }
 }
\ No newline at end of file
@@ -20,19 +20,18 @@ import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Build;
 import android.os.ParcelUuid;
 import android.util.Log;
-import com.annimon.stream.Collectors;
-import com.annimon.stream.Stream;
+import com.jameslandrum.bluetoothsmart2.Utils;
+import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * Scanner for API 21 and above.
@@ -41,23 +40,83 @@ import java.util.concurrent.ConcurrentSkipListMap;
 public class LollipopDeviceScanner extends DeviceScanner {
     private BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
     private BluetoothLeScanner mScanner;
-    private HashMap<String, List<UUID>> mUuidMap = new HashMap<>();
+    private static final byte[] IBEACON_PREFIX = new byte[]{0x02, 0x15};
+    private static final UUID EDDYSTONE_UUID = new UUID(BeaconParser.EDDYSTONE_MSB, Utils.BASE_UUID_LSB);
+
     private boolean mIsScanning;
+    private final LongIndex mBatchLatest = new LongIndex(64);
 
     @Override
     public void startScan(@ScanMode int scanMode, int interval) {
         mScanMode = scanMode;
+        mScanInterval = interval;
         if (mScanner == null) mScanner = mAdapter.getBluetoothLeScanner();
         if (mAdapter.isEnabled() && mScanner != null) {
+            if (mIsScanning) mScanner.stopScan(callback);
             ScanSettings.Builder settings = new ScanSettings.Builder();
             Log.d("LollipopDeviceScanner", "Setting scan mode to " + scanMode);
             settings.setScanMode(scanMode);
             if (interval > 0) settings.setReportDelay(interval);
-            mScanner.startScan(null, settings.build(), callback);
+            List<ScanFilter> filters = buildFilters();
+            Log.d("LollipopDeviceScanner", filters == null ? "Filtering in software." : "Offloading " + filters.size() + " scan filters.");
+            mScanner.startScan(filters, settings.build(), callback);
             mIsScanning = true;
         }
     }
 
+    @Override
+    protected void onIdentifiersChanged() {
+        if (mIsScanning) requestRestart();
+    }
+
+    /**
+     * Translates the registered identifiers into controller scan filters.
+     * Each filter carries the parts of an identifier the controller can match; anything else (further service
+     * UUIDs, ByteIds) is still checked in software once the advertisement is delivered.
+     * @return The filters, or null if filtering can not be offloaded.
+     */
+    private List<ScanFilter> buildFilters() {
+        if (!mFilterOffload) return null;
+        List<Identifier> identifiers = getIdentifiers();
+        if (identifiers.isEmpty()) return null;
+
+        ArrayList<ScanFilter> filters = new ArrayList<>();
+        for (Identifier identifier : identifiers) {
+            if (!identifier.isOffloadable()) return null;
+
+            ScanFilter.Builder filter = new ScanFilter.Builder();
+            if (!identifier.getUuids().isEmpty()) {
+                filter.setServiceUuid(new ParcelUuid(identifier.getUuids().get(0)));
+            }
+            if (identifier.getName() != null) {
+                filter.setDeviceName(identifier.getName());
+            }
+            if (identifier.getManufacturerId() != Identifier.NO_MANUFACTURER) {
+                byte[] data = identifier.getManufacturerData() == null ? new byte[0] : identifier.getManufacturerData();
+                byte[] mask = identifier.getManufacturerDataMask();
+                if (mask == null) filter.setManufacturerData(identifier.getManufacturerId(), data);
+                else filter.setManufacturerData(identifier.getManufacturerId(), data, mask);
+            }
+            if (identifier.getServiceDataUuid() != null) {
+                ParcelUuid uuid = new ParcelUuid(identifier.getServiceDataUuid());
+                byte[] data = identifier.getServiceData() == null ? new byte[0] : identifier.getServiceData();
+                if (identifier.getServiceDataMask() == null) filter.setServiceData(uuid, data);
+                else filter.setServiceData(uuid, data, identifier.getServiceDataMask());
+            }
+            filters.add(filter.build());
+        }
+
+        if (mBeaconFilter && isDecodingBeacons()) {
+            filters.add(new ScanFilter.Builder()
+                    .setManufacturerData(APPLE_COMPANY_ID, IBEACON_PREFIX)
+                    .build());
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(EDDYSTONE_UUID))
+                    .build());
+        }
+        return filters;
+    }
+
     @Override
     public void stopScan() {
         if (mScanner != null && mAdapter.isEnabled()) {
@@ -76,26 +135,46 @@ public class LollipopDeviceScanner extends DeviceScanner {
         public void onScanResult(int callbackType, final ScanResult result) {
             try {
                 if (result.getScanRecord() != null) {
-                    List<UUID> uuids = mUuidMap.get(result.getDevice().getAddress());
-
-                    if (uuids == null) {
-                        if (result.getScanRecord().getServiceUuids() != null) {
-                            uuids = Stream.of(result.getScanRecord().getServiceUuids())
-                                    .map(ParcelUuid::getUuid)
-                                    .collect(Collectors.toList());
-                        } else {
-                            uuids = new ArrayList<>();
-                        }
-                        mUuidMap.put(result.getDevice().getAddress(), uuids);
-                    }
-
-                    processAdvertisement(result.getScanRecord().getBytes(), result.getDevice(), uuids, result.getRssi());
+                    submitAdvertisement(result.getScanRecord().getBytes(), result.getDevice(), result.getRssi());
                 }
             } catch (Exception ignored) {
                 ignored.printStackTrace();
             }
         }
 
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            // Find the newest record for each device, then process those in the order they were received.
+            mBatchLatest.clear();
+            for (int i = 0; i < results.size(); i++) {
+                ScanResult result = results.get(i);
+                if (result.getScanRecord() == null) continue;
+                long mac = Utils.macToLong(result.getDevice().getAddress());
+                if (mac < 0) continue;      // Malformed addresses can not be keyed, or processed
+                int latest = mBatchLatest.get(mac);
+                if (latest == LongIndex.MISSING
+                        || results.get(latest).getTimestampNanos() <= result.getTimestampNanos()) {
+                    mBatchLatest.put(mac, i);
+                }
+            }
+
+            beginBatch();
+            try {
+                for (int i = 0; i < results.size(); i++) {
+                    ScanResult result = results.get(i);
+                    if (result.getScanRecord() == null) continue;
+                    if (mBatchLatest.get(Utils.macToLong(result.getDevice().getAddress())) != i) continue;
+                    try {
+                        submitAdvertisement(result.getScanRecord().getBytes(), result.getDevice(), result.getRssi());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                endBatch();
+            }
+        }
+
         @Override
         public void onScanFailed(int errorCode) {
             super.onScanFailed(errorCode);
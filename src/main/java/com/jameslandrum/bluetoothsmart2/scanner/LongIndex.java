@@ -0,0 +1,129 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import java.util.Arrays;
+
+/**
+ * Open addressed map from a non-negative long (typically a packed MAC address) to an int slot.
+ * Linear probing with backward shift deletion, so there are no tombstones and lookups never allocate.
+ * Not thread safe.
+ */
+final class LongIndex {
+    static final int MISSING = -1;
+    private static final long EMPTY = -1L;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    private int mSize;
+
+    LongIndex(int expected) {
+        int size = 4;
+        while (size < expected * 2) size <<= 1;
+        allocate(size);
+    }
+
+    private void allocate(int size) {
+        mKeys = new long[size];
+        mValues = new int[size];
+        mMask = size - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int get(long key) {
+        int slot = hash(key) & mMask;
+        long k;
+        while ((k = mKeys[slot]) != EMPTY) {
+            if (k == key) return mValues[slot];
+            slot = (slot + 1) & mMask;
+        }
+        return MISSING;
+    }
+
+    void put(long key, int value) {
+        if ((mSize + 1) * 2 > mKeys.length) grow();
+        int slot = hash(key) & mMask;
+        long k;
+        while ((k = mKeys[slot]) != EMPTY) {
+            if (k == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+    }
+
+    int remove(long key) {
+        int slot = hash(key) & mMask;
+        long k;
+        while ((k = mKeys[slot]) != EMPTY) {
+            if (k == key) {
+                int value = mValues[slot];
+                shiftBack(slot);
+                mSize--;
+                return value;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return MISSING;
+    }
+
+    void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private void shiftBack(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mMask;
+            long k = mKeys[slot];
+            if (k == EMPTY) break;
+            int home = hash(k) & mMask;
+            // Move the entry into the hole if its home slot does not lie cyclically in (hole, slot].
+            if (((slot - home) & mMask) >= ((slot - hole) & mMask)) {
+                mKeys[hole] = k;
+                mValues[hole] = mValues[slot];
+                hole = slot;
+            }
+        }
+        mKeys[hole] = EMPTY;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(keys.length * 2);
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) put(keys[i], values[i]);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+/**
+ * Negative cache with a fixed number of slots, evicting the least recently seen device when full.
+ * Slots are linked in recency order through primitive arrays, so hits and inserts never allocate.
+ */
+final class LruNegativeCache extends NegativeCache {
+    private static final int NONE = -1;
+
+    private final long mTtl;
+    private final LongIndex mIndex;
+    private final long[] mMacs;
+    private final long[] mSignatures;
+    private final long[] mExpires;
+    private final int[] mGenerations;
+    private final int[] mPrev;
+    private final int[] mNext;
+    private int mHead = NONE;   // Most recently seen
+    private int mTail = NONE;   // Least recently seen
+    private int mFree;          // Head of the free slot list, linked through mNext
+
+    LruNegativeCache(int capacity, long ttl) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+        mTtl = ttl;
+        mIndex = new LongIndex(capacity);
+        mMacs = new long[capacity];
+        mSignatures = new long[capacity];
+        mExpires = new long[capacity];
+        mGenerations = new int[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        resetSlots();
+    }
+
+    private void resetSlots() {
+        for (int i = 0; i < mNext.length; i++) mNext[i] = i + 1 < mNext.length ? i + 1 : NONE;
+        mFree = 0;
+        mHead = NONE;
+        mTail = NONE;
+    }
+
+    @Override
+    synchronized boolean contains(long mac, long now) {
+        if (mac < 0) return false;
+        int slot = mIndex.get(mac);
+        if (slot == LongIndex.MISSING) return false;
+        if (now >= mExpires[slot] || staleSince(mGenerations[slot], mSignatures[slot])) {
+            release(slot);
+            return false;
+        }
+        if (slot != mHead) {
+            unlink(slot);
+            linkFirst(slot);
+        }
+        return true;
+    }
+
+    @Override
+    synchronized void add(long mac, long signature, long now) {
+        if (mac < 0) return;
+        int slot = mIndex.get(mac);
+        if (slot == LongIndex.MISSING) {
+            if (mFree == NONE) release(mTail);
+            slot = mFree;
+            mFree = mNext[slot];
+            mIndex.put(mac, slot);
+        } else {
+            unlink(slot);
+        }
+        mMacs[slot] = mac;
+        mSignatures[slot] = signature;
+        mExpires[slot] = now + mTtl;
+        mGenerations[slot] = currentGeneration();
+        linkFirst(slot);
+    }
+
+    @Override
+    synchronized void remove(long mac) {
+        int slot = mIndex.get(mac);
+        if (slot != LongIndex.MISSING) release(slot);
+    }
+
+    @Override
+    synchronized void clear() {
+        mIndex.clear();
+        resetSlots();
+    }
+
+    private void release(int slot) {
+        unlink(slot);
+        mIndex.remove(mMacs[slot]);
+        mNext[slot] = mFree;
+        mFree = slot;
+    }
+
+    private void linkFirst(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) mPrev[mHead] = slot;
+        mHead = slot;
+        if (mTail == NONE) mTail = slot;
+    }
+
+    private void unlink(int slot) {
+        int prev = mPrev[slot];
+        int next = mNext[slot];
+        if (prev != NONE) mNext[prev] = next; else mHead = next;
+        if (next != NONE) mPrev[next] = prev; else mTail = prev;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Remembers devices that did not match any identifier so their advertisements can be dropped cheaply.
+ * Devices are keyed by their packed MAC address and are forgotten after a time to live.
+ *
+ * Entries carry a signature of the advertisement they were rejected for. When an identifier is added the
+ * cache records a new generation, and entries rejected in an earlier generation are only dropped if their
+ * signature could satisfy one of the identifiers added since.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class NegativeCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    static final long NO_LOCAL_NAME = 1L << 63;
+    private static final int MAX_GENERATIONS = 64;
+
+    private final long[] mGenerationMasks = new long[MAX_GENERATIONS];
+    private final long[] mGenerationNameBits = new long[MAX_GENERATIONS];
+    private int mGeneration;
+
+    /**
+     * Creates a bounded cache that evicts the least recently seen device once full.
+     * @param capacity The maximum number of devices to remember.
+     * @param ttl How long, in milliseconds, a rejected device is remembered.
+     */
+    public static NegativeCache lru(int capacity, long ttl) {
+        return new LruNegativeCache(capacity, ttl);
+    }
+
+    /**
+     * Creates a cache backed by a pair of rotating Bloom filters, for very large device populations.
+     * Memory use is fixed, but entries can not be invalidated individually; adding an identifier clears it.
+     * @param expectedDevices The number of devices expected within one time to live.
+     * @param ttl How long, in milliseconds, a rejected device is remembered (at least half of it, at most all of it).
+     */
+    public static NegativeCache bloom(int expectedDevices, long ttl) {
+        return new BloomNegativeCache(expectedDevices, ttl);
+    }
+
+    // Malformed addresses pack to -1, which is never remembered: LongIndex reserves negative keys.
+    abstract boolean contains(long mac, long now);
+    abstract void add(long mac, long signature, long now);
+    abstract void remove(long mac);
+    abstract void clear();
+
+    /**
+     * Records that an identifier was added. Entries rejected before this point are re-evaluated if they
+     * could match it.
+     */
+    synchronized void identifierAdded(Identifier identifier) {
+        if (mGeneration == MAX_GENERATIONS) {
+            clear();
+            mGeneration = 0;
+        }
+        mGenerationNameBits[mGeneration] = identifier.getName() == null ? 0 : bit(identifier.getName().hashCode());
+        mGenerationMasks[mGeneration] = signature(identifier);
+        mGeneration++;
+    }
+
+    int currentGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return true if an entry rejected at the given generation could match an identifier added since.
+     */
+    boolean staleSince(int generation, long signature) {
+        for (int g = generation; g < mGeneration; g++) {
+            long required = mGenerationMasks[g];
+            if ((signature & NO_LOCAL_NAME) != 0) required &= ~mGenerationNameBits[g];
+            if ((signature & required) == required) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Summarises the keys an advertisement could be matched by. Name identifiers match either the advertised
+     * local name or the device name, so both contribute a name bit.
+     * @param deviceName The name the platform has cached for the device, or null.
+     */
+    static long signature(AdvertisementReader reader, String deviceName) {
+        long result = 0;
+        for (int i = 0; i < reader.getServiceUuidCount(); i++) {
+            result |= bit(reader.getServiceUuidMsb(i) ^ reader.getServiceUuidLsb(i));
+        }
+        result |= reader.hasLocalName() ? bit(reader.localNameHash()) : NO_LOCAL_NAME;
+        if (deviceName != null) result |= bit(deviceName.hashCode());
+        if (reader.getManufacturerId() != AdvertisementReader.NO_MANUFACTURER) {
+            result |= bit(reader.getManufacturerId());
+        }
+        return result;
+    }
+
+    /**
+     * Summarises the keys an identifier requires. An identifier with no keys yields 0, which every
+     * advertisement signature satisfies.
+     */
+    static long signature(Identifier identifier) {
+        long result = 0;
+        ArrayList<UUID> uuids = identifier.getUuids();
+        for (int i = 0; i < uuids.size(); i++) {
+            result |= bit(uuids.get(i).getMostSignificantBits() ^ uuids.get(i).getLeastSignificantBits());
+        }
+        if (identifier.getName() != null) result |= bit(identifier.getName().hashCode());
+        if (identifier.getManufacturerId() != Identifier.NO_MANUFACTURER) result |= bit(identifier.getManufacturerId());
+        return result;
+    }
+
+    private static long bit(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return 1L << (int) ((h >>> 32) % 63);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks which beacon regions are occupied.
+ *
+ * Regions are indexed by proximity UUID or Eddystone namespace, so a frame is only compared against regions
+ * that share its key (and the iBeacon regions that match any UUID). Each frame refreshes the regions it
+ * matches and reports the ones it entered; exits are found by checking only the occupied regions.
+ */
+final class RegionTracker {
+    private static final int[] NO_REGIONS = new int[0];
+
+    private final ArrayList<BeaconRegion> mRegions = new ArrayList<>();
+    private LongIndex mIndex = new LongIndex(16);      // Key to bucket
+    private int[][] mBuckets = new int[0][];
+    private int[] mAnyUuid = NO_REGIONS;
+    private int mInside;
+
+    synchronized boolean isEmpty() {
+        return mRegions.isEmpty();
+    }
+
+    synchronized void add(BeaconRegion region) {
+        if (mRegions.contains(region)) return;
+        region.mInside = false;
+        mRegions.add(region);
+        rebuild();
+    }
+
+    /**
+     * @return true if the region was occupied.
+     */
+    synchronized boolean remove(BeaconRegion region) {
+        if (!mRegions.remove(region)) return false;
+        rebuild();
+        if (region.mInside) {
+            region.mInside = false;
+            mInside--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Refreshes the regions matching a frame.
+     * @param entered Receives the regions the frame entered.
+     */
+    synchronized void onFrame(BeaconFrame frame, long now, List<BeaconRegion> entered) {
+        int[] bucket;
+        if (frame.mType == BeaconFrame.TYPE_IBEACON) {
+            refresh(mAnyUuid, frame, now, entered);
+            bucket = bucket(key(frame.mUuidMsb, frame.mUuidLsb));
+        } else if (frame.mType == BeaconFrame.TYPE_EDDYSTONE_UID) {
+            bucket = bucket(key(frame.mNamespaceHigh, frame.mNamespaceLow));
+        } else {
+            return;
+        }
+        refresh(bucket, frame, now, entered);
+    }
+
+    /**
+     * Finds the occupied regions that have timed out.
+     * @param exited Receives the regions that were exited.
+     */
+    synchronized void expire(long now, List<BeaconRegion> exited) {
+        if (mInside == 0) return;
+        for (int i = 0; i < mRegions.size(); i++) {
+            BeaconRegion region = mRegions.get(i);
+            if (region.mInside && now - region.mLastSeen >= region.getExitTimeout()) {
+                region.mInside = false;
+                mInside--;
+                exited.add(region);
+            }
+        }
+    }
+
+    synchronized boolean hasOccupiedRegions() {
+        return mInside > 0;
+    }
+
+    private void refresh(int[] regions, BeaconFrame frame, long now, List<BeaconRegion> entered) {
+        for (int index : regions) {
+            BeaconRegion region = mRegions.get(index);
+            if (!region.matches(frame)) continue;
+            region.mLastSeen = now;
+            if (!region.mInside) {
+                region.mInside = true;
+                mInside++;
+                entered.add(region);
+            }
+        }
+    }
+
+    private int[] bucket(long key) {
+        int bucket = mIndex.get(key);
+        return bucket == LongIndex.MISSING ? NO_REGIONS : mBuckets[bucket];
+    }
+
+    // Collisions only cost a comparison, as every region is matched exactly.
+    private static long key(long high, long low) {
+        return (high * 0x9E3779B97F4A7C15L ^ low) & Long.MAX_VALUE;
+    }
+
+    private void rebuild() {
+        LongIndex index = new LongIndex(mRegions.size());
+        ArrayList<int[]> buckets = new ArrayList<>();
+        int anyCount = 0;
+        int[] any = new int[mRegions.size()];
+
+        for (int i = 0; i < mRegions.size(); i++) {
+            BeaconRegion region = mRegions.get(i);
+            long key;
+            if (region.isEddystone()) {
+                key = key(region.getNamespaceHigh(), region.getNamespaceLow());
+            } else if (region.hasUuid()) {
+                key = key(region.getUuidMsb(), region.getUuidLsb());
+            } else {
+                any[anyCount++] = i;
+                continue;
+            }
+            int bucket = index.get(key);
+            if (bucket == LongIndex.MISSING) {
+                index.put(key, buckets.size());
+                buckets.add(new int[]{i});
+            } else {
+                int[] old = buckets.get(bucket);
+                int[] grown = new int[old.length + 1];
+                System.arraycopy(old, 0, grown, 0, old.length);
+                grown[old.length] = i;
+                buckets.set(bucket, grown);
+            }
+        }
+
+        mIndex = index;
+        mBuckets = buckets.toArray(new int[buckets.size()][]);
+        mAnyUuid = new int[anyCount];
+        System.arraycopy(any, 0, mAnyUuid, 0, anyCount);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped file of fixed size device records, so the registry can be repopulated on startup before any
+ * advertisement arrives.
+ *
+ * Each record holds a device's address, class, last advertisement, last seen time and smoothed RSSI. Records are
+ * written in place as devices are discovered and reported, and the operating system writes the mapped pages back,
+ * so a snapshot survives the process being killed. Records read on startup stay pending until the scanner
+ * restores the device they describe.
+ */
+final class RegistrySnapshot {
+    static final int MAX_ADVERTISEMENT = 62;
+
+    private static final int MAGIC = 0x42535253;    // "BSRS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 96;
+
+    private static final int OFFSET_ADDRESS = 0;
+    private static final int OFFSET_LAST_SEEN = 8;
+    private static final int OFFSET_CLASS = 16;
+    private static final int OFFSET_RSSI = 20;
+    private static final int OFFSET_LENGTH = 24;
+    private static final int OFFSET_USED = 26;
+    private static final int OFFSET_DATA = 28;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final LongIndex mSlots;
+    private final boolean[] mPending;
+    private final int[] mFree;
+    private int mFreeCount;
+    private int mPendingCount;
+    private final byte[] mScratch = new byte[MAX_ADVERTISEMENT];
+
+    /**
+     * A pending record, as read from the snapshot.
+     */
+    static final class Entry {
+        long mAddress;
+        long mLastSeen;     // Wall clock time, in milliseconds
+        int mClassHash;
+        int mRssi;
+        int mLength;
+        final byte[] mData = new byte[MAX_ADVERTISEMENT];
+    }
+
+    private RegistrySnapshot(MappedByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mSlots = new LongIndex(capacity);
+        mPending = new boolean[capacity];
+        mFree = new int[capacity];
+    }
+
+    /**
+     * Maps a snapshot file, creating it or starting over if it was written with a different capacity.
+     */
+    static RegistrySnapshot open(File file, int capacity) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean valid = raf.length() == size && raf.readInt() == MAGIC && raf.readInt() == VERSION
+                    && raf.readInt() == capacity;
+            if (!valid) raf.setLength(0);
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!valid) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+            }
+        }
+
+        RegistrySnapshot snapshot = new RegistrySnapshot(buffer, capacity);
+        for (int slot = capacity - 1; slot >= 0; slot--) {
+            int base = HEADER_SIZE + slot * RECORD_SIZE;
+            long address = buffer.getLong(base + OFFSET_ADDRESS);
+            if (buffer.get(base + OFFSET_USED) == 0 || address < 0 || snapshot.mSlots.get(address) != LongIndex.MISSING) {
+                buffer.put(base + OFFSET_USED, (byte) 0);
+                snapshot.mFree[snapshot.mFreeCount++] = slot;
+            } else {
+                snapshot.mSlots.put(address, slot);
+                snapshot.mPending[slot] = true;
+                snapshot.mPendingCount++;
+            }
+        }
+        return snapshot;
+    }
+
+    synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    synchronized boolean isPending(long address) {
+        int slot = mSlots.get(address);
+        return slot != LongIndex.MISSING && mPending[slot];
+    }
+
+    /**
+     * Reads the pending record for an address.
+     * @return false if there is no pending record for the address.
+     */
+    synchronized boolean read(long address, Entry entry) {
+        int slot = mSlots.get(address);
+        if (slot == LongIndex.MISSING || !mPending[slot]) return false;
+        readSlot(slot, entry);
+        return true;
+    }
+
+    /**
+     * Copies the addresses of every pending record into an array.
+     */
+    synchronized long[] getPendingAddresses() {
+        long[] result = new long[mPendingCount];
+        int count = 0;
+        for (int slot = 0; slot < mCapacity && count < result.length; slot++) {
+            if (mPending[slot]) result[count++] = mBuffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + OFFSET_ADDRESS);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the current state of a device over its record, taking a free record if it has none.
+     * @return false if the snapshot is full.
+     */
+    synchronized boolean write(SmartDevice device) {
+        long address = device.getPackedAddress();
+        if (address < 0) return false;
+        int slot = mSlots.get(address);
+        if (slot == LongIndex.MISSING) {
+            if (mFreeCount == 0) return false;
+            slot = mFree[--mFreeCount];
+            mSlots.put(address, slot);
+        } else if (mPending[slot]) {
+            mPending[slot] = false;
+            mPendingCount--;
+        }
+
+        int length = Math.min(device.copyAdvertisement(mScratch), MAX_ADVERTISEMENT);
+        int base = HEADER_SIZE + slot * RECORD_SIZE;
+        mBuffer.putLong(base + OFFSET_ADDRESS, address);
+        mBuffer.putLong(base + OFFSET_LAST_SEEN, device.getLastSeen());
+        mBuffer.putInt(base + OFFSET_CLASS, classHash(device.getClass()));
+        mBuffer.putFloat(base + OFFSET_RSSI, (float) device.getSmoothedRssi());
+        mBuffer.putShort(base + OFFSET_LENGTH, (short) length);
+        for (int i = 0; i < length; i++) mBuffer.put(base + OFFSET_DATA + i, mScratch[i]);
+        mBuffer.put(base + OFFSET_USED, (byte) 1);
+        return true;
+    }
+
+    /**
+     * Marks a pending record as restored, without changing it.
+     */
+    synchronized void restored(long address) {
+        int slot = mSlots.get(address);
+        if (slot != LongIndex.MISSING && mPending[slot]) {
+            mPending[slot] = false;
+            mPendingCount--;
+        }
+    }
+
+    synchronized void remove(long address) {
+        int slot = mSlots.remove(address);
+        if (slot == LongIndex.MISSING) return;
+        mBuffer.put(HEADER_SIZE + slot * RECORD_SIZE + OFFSET_USED, (byte) 0);
+        if (mPending[slot]) {
+            mPending[slot] = false;
+            mPendingCount--;
+        }
+        mFree[mFreeCount++] = slot;
+    }
+
+    /**
+     * Flushes the mapped records to storage. Only needed to survive the device itself losing power.
+     */
+    synchronized void flush() {
+        mBuffer.force();
+    }
+
+    static int classHash(Class<?> type) {
+        return type.getName().hashCode();
+    }
+
+    private void readSlot(int slot, Entry entry) {
+        int base = HEADER_SIZE + slot * RECORD_SIZE;
+        entry.mAddress = mBuffer.getLong(base + OFFSET_ADDRESS);
+        entry.mLastSeen = mBuffer.getLong(base + OFFSET_LAST_SEEN);
+        entry.mClassHash = mBuffer.getInt(base + OFFSET_CLASS);
+        entry.mRssi = Math.round(mBuffer.getFloat(base + OFFSET_RSSI));
+        entry.mLength = Math.min(mBuffer.getShort(base + OFFSET_LENGTH) & 0xFFFF, MAX_ADVERTISEMENT);
+        for (int i = 0; i < entry.mLength; i++) entry.mData[i] = mBuffer.get(base + OFFSET_DATA + i);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.jameslandrum.bluetoothsmart2.Logging;
+
+/**
+ * Decides when, and with which parameters, the scanner is (re)started.
+ *
+ * Every start goes through the scheduler, which keeps at most {@link #MAX_STARTS} starts in any
+ * {@link #START_WINDOW} so Android does not silently stop delivering results; a restart that would exceed the
+ * limit is deferred and coalesced with any later request. Scans are also restarted every
+ * {@link #REFRESH_INTERVAL}, before the platform downgrades long running scans to opportunistic ones.
+ *
+ * When adaptive scanning is enabled, the scheduler watches the discovery rate and steps the scan down one level
+ * (a lower duty scan mode in the foreground, a longer batch interval in the background) for every
+ * {@link #QUIET_PERIOD} without a new device, returning to the configured parameters as soon as one appears.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ScanScheduler {
+    public static final int MAX_STARTS = 5;
+    public static final long START_WINDOW = 30 * 1000;
+    public static final long REFRESH_INTERVAL = 25 * 60 * 1000;
+    public static final long QUIET_PERIOD = 30 * 1000;
+
+    private static final long EVALUATION_INTERVAL = 5 * 1000;
+    private static final int MAX_QUIET_LEVEL = 3;
+    private static final int MAX_BATCH_INTERVAL = 60 * 1000;
+    private static final long START_MARGIN = 250;
+
+    private final DeviceScanner mScanner;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final long[] mStarts = new long[MAX_STARTS];  // Ring of recent start times
+    private int mStartIndex;
+
+    private boolean mRunning;
+    private boolean mAdaptive;
+    private boolean mForeground = true;
+    private int mActiveMode = DeviceScanner.SCAN_MODE_LOW_LATENCY;
+    private int mActiveBatchInterval = 0;
+    private int mYieldMode = DeviceScanner.SCAN_MODE_LOW_POWER;
+    private int mYieldBatchInterval = 15000;
+
+    private int mQuietLevel;
+    private long mLastDiscovered;
+    private long mQuietSince;
+
+    private int mAppliedMode = Integer.MIN_VALUE;
+    private int mAppliedBatchInterval;
+    private boolean mRestartPending;
+
+    public ScanScheduler(DeviceScanner scanner) {
+        mScanner = scanner;
+        for (int i = 0; i < MAX_STARTS; i++) mStarts[i] = Long.MIN_VALUE / 2;
+        mScanner.setRestartHandler(() -> mHandler.post(this::restart));
+    }
+
+    public synchronized void start() {
+        mRunning = true;
+        mQuietLevel = 0;
+        mQuietSince = SystemClock.elapsedRealtime();
+        mLastDiscovered = mScanner.getStatistics().getDiscovered();
+        restart();
+        scheduleEvaluation();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        mRestartPending = false;
+        mAppliedMode = Integer.MIN_VALUE;
+        mHandler.removeCallbacks(mDeferredStart);
+        mHandler.removeCallbacks(mEvaluate);
+        mHandler.removeCallbacks(mRefresh);
+        mScanner.stopScan();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized void setForeground(boolean foreground) {
+        if (mForeground == foreground) return;
+        mForeground = foreground;
+        mQuietLevel = 0;
+        apply();
+    }
+
+    public synchronized void setActiveMode(@DeviceScanner.ScanMode int mode, int batchInterval) {
+        mActiveMode = mode;
+        mActiveBatchInterval = batchInterval;
+        apply();
+    }
+
+    public synchronized void setYieldMode(@DeviceScanner.ScanMode int mode, int batchInterval) {
+        mYieldMode = mode;
+        mYieldBatchInterval = batchInterval;
+        apply();
+    }
+
+    /**
+     * Enables adapting the scan parameters to the discovery rate. Disabled by default, in which case the
+     * configured active and yield parameters are used as-is.
+     * @param adaptive Whether to adapt the scan parameters.
+     */
+    public synchronized void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+        mQuietLevel = 0;
+        apply();
+        scheduleEvaluation();
+    }
+
+    /**
+     * Restarts the scan with the current parameters, subject to the start limit.
+     */
+    public synchronized void restart() {
+        if (!mRunning) return;
+        mAppliedMode = Integer.MIN_VALUE;
+        apply();
+    }
+
+    private int targetMode() {
+        int mode = mForeground ? mActiveMode : mYieldMode;
+        if (!mAdaptive || !mForeground || mode <= DeviceScanner.SCAN_MODE_LOW_POWER) return mode;
+        return Math.max(DeviceScanner.SCAN_MODE_LOW_POWER, mode - mQuietLevel);
+    }
+
+    private int targetBatchInterval() {
+        int interval = mForeground ? mActiveBatchInterval : mYieldBatchInterval;
+        if (!mAdaptive || mForeground || interval <= 0) return interval;
+        return Math.min(MAX_BATCH_INTERVAL, interval << mQuietLevel);
+    }
+
+    // Called with the lock held. Starts the scan if the target parameters differ from those applied.
+    private void apply() {
+        if (!mRunning) return;
+        int mode = targetMode();
+        int interval = targetBatchInterval();
+        if (mode == mAppliedMode && interval == mAppliedBatchInterval && !mRestartPending) return;
+
+        long now = SystemClock.elapsedRealtime();
+        long oldest = mStarts[mStartIndex];
+        if (now - oldest < START_WINDOW) {
+            if (!mRestartPending) {
+                mRestartPending = true;
+                long delay = oldest + START_WINDOW + START_MARGIN - now;
+                Logging.notice("Scan start limit reached, deferring restart by %d ms.", delay);
+                mHandler.postDelayed(mDeferredStart, delay);
+            }
+            return;
+        }
+
+        mRestartPending = false;
+        mHandler.removeCallbacks(mDeferredStart);
+        mStarts[mStartIndex] = now;
+        mStartIndex = (mStartIndex + 1) % MAX_STARTS;
+        mAppliedMode = mode;
+        mAppliedBatchInterval = interval;
+
+        Logging.notice("Starting scan in mode %d with batch interval %d.", mode, interval);
+        mScanner.startScan(mode, interval);
+
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.postDelayed(mRefresh, REFRESH_INTERVAL);
+    }
+
+    private void scheduleEvaluation() {
+        mHandler.removeCallbacks(mEvaluate);
+        if (mRunning && mAdaptive) mHandler.postDelayed(mEvaluate, EVALUATION_INTERVAL);
+    }
+
+    private synchronized void evaluate() {
+        if (!mRunning || !mAdaptive) return;
+        long now = SystemClock.elapsedRealtime();
+        long discovered = mScanner.getStatistics().getDiscovered();
+        if (discovered < mLastDiscovered) mLastDiscovered = 0;
+
+        if (discovered != mLastDiscovered) {
+            mLastDiscovered = discovered;
+            mQuietSince = now;
+            mQuietLevel = 0;
+        } else if (now - mQuietSince >= QUIET_PERIOD && mQuietLevel < MAX_QUIET_LEVEL) {
+            mQuietSince = now;
+            mQuietLevel++;
+        }
+        apply();
+        scheduleEvaluation();
+    }
+
+    private final Runnable mDeferredStart = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (!mRestartPending) return;
+                mAppliedMode = Integer.MIN_VALUE;
+                apply();
+            }
+        }
+    };
+
+    private final Runnable mEvaluate = this::evaluate;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            Logging.notice("Refreshing long running scan.");
+            restart();
+        }
+    };
+}
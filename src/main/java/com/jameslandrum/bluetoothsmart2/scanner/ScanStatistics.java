@@ -0,0 +1,121 @@
+/*
+  Copyright 2017 James Landrum
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the scanner handled the advertisements it received.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ScanStatistics {
+    final AtomicLong mReceived = new AtomicLong();
+    final AtomicLong mRejected = new AtomicLong();
+    final AtomicLong mDiscovered = new AtomicLong();
+    final AtomicLong mUpdated = new AtomicLong();
+    final AtomicLong mSuppressed = new AtomicLong();
+    final AtomicLong mDropped = new AtomicLong();
+    final AtomicLong mConflated = new AtomicLong();
+    private volatile long mLastLag;
+    private final AtomicLong mMaxLag = new AtomicLong();
+
+    ScanStatistics() {
+    }
+
+    /**
+     * @return The number of advertisements handed to the scanner.
+     */
+    public long getReceived() {
+        return mReceived.get();
+    }
+
+    /**
+     * @return The number of advertisements dropped because the device matched no identifier.
+     */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /**
+     * @return The number of devices discovered.
+     */
+    public long getDiscovered() {
+        return mDiscovered.get();
+    }
+
+    /**
+     * @return The number of advertisements from known devices reported as DEVICE_UPDATED.
+     */
+    public long getUpdated() {
+        return mUpdated.get();
+    }
+
+    /**
+     * @return The number of advertisements from known devices dropped as redundant.
+     */
+    public long getSuppressed() {
+        return mSuppressed.get();
+    }
+
+    /**
+     * @return The number of advertisements dropped because the ingest queue was full.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return The number of queued advertisements skipped because a newer one from the same device was queued.
+     */
+    public long getConflated() {
+        return mConflated.get();
+    }
+
+    /**
+     * @return How long, in nanoseconds, the last advertisement waited in the ingest queue.
+     */
+    public long getLastIngestLag() {
+        return mLastLag;
+    }
+
+    /**
+     * @return The longest time, in nanoseconds, an advertisement waited in the ingest queue.
+     */
+    public long getMaxIngestLag() {
+        return mMaxLag.get();
+    }
+
+    void recordLag(long lag) {
+        mLastLag = lag;
+        long max;
+        while (lag > (max = mMaxLag.get()) && !mMaxLag.compareAndSet(max, lag)) {
+            // retry
+        }
+    }
+
+    public void reset() {
+        mReceived.set(0);
+        mRejected.set(0);
+        mDiscovered.set(0);
+        mUpdated.set(0);
+        mSuppressed.set(0);
+        mDropped.set(0);
+        mConflated.set(0);
+        mLastLag = 0;
+        mMaxLag.set(0);
+    }
+}
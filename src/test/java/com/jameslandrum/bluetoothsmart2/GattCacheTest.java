@@ -0,0 +1,108 @@
+package com.jameslandrum.bluetoothsmart2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips GATT layouts through the file store and checks that layouts under another key are ignored.
+ */
+public class GattCacheTest {
+    private static final long ADDRESS = 0xA1B2C3D4E5F6L;
+    private static final UUID SERVICE_A = UUID.fromString("00001523-1212-efde-1523-785feabcd123");
+    private static final UUID SERVICE_B = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID LED = UUID.fromString("00001525-1212-efde-1523-785feabcd123");
+    private static final UUID BUTTON = UUID.fromString("00001524-1212-efde-1523-785feabcd123");
+    private static final UUID BATTERY = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("gatt-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        GattCache.setStore(null);
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private static GattLayout layout(long key) {
+        return GattLayout.of(key, new UUID[] {SERVICE_A, SERVICE_B}, new int[] {2, 1},
+                new UUID[] {BUTTON, LED, BATTERY}, new int[] {0x12, 0x0C, 0x02});
+    }
+
+    @Test
+    public void layoutSurvivesFileStoreRoundTrip() throws IOException {
+        GattCache.FileStore store = new GattCache.FileStore(mDirectory);
+        store.write(ADDRESS, layout(7).toBytes());
+
+        GattLayout read = GattLayout.fromBytes(new GattCache.FileStore(mDirectory).read(ADDRESS));
+        assertEquals(7, read.getKey());
+        assertEquals(0, read.find(SERVICE_A, BUTTON));
+        assertEquals(1, read.find(SERVICE_A, LED));
+        assertEquals(1 << 16, read.find(null, BATTERY));
+        assertEquals(-1, read.find(SERVICE_B, LED));
+        assertArrayEquals(layout(7).toBytes(), read.toBytes());
+    }
+
+    @Test
+    public void missingLayoutReadsAsNull() throws IOException {
+        assertNull(new GattCache.FileStore(mDirectory).read(ADDRESS));
+    }
+
+    @Test
+    public void deleteRemovesLayout() throws IOException {
+        GattCache.FileStore store = new GattCache.FileStore(mDirectory);
+        store.write(ADDRESS, layout(7).toBytes());
+        store.delete(ADDRESS);
+        assertNull(store.read(ADDRESS));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptLayoutIsRejected() throws IOException {
+        byte[] data = layout(7).toBytes();
+        data[12] = 0x7F;    // Service count
+        GattLayout.fromBytes(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeServiceCountIsRejected() throws IOException {
+        byte[] data = layout(7).toBytes();
+        ByteBuffer.wrap(data).putInt(36, 4).putInt(56, -1);     // Counts of 4 and -1 still total 3
+        GattLayout.fromBytes(data);
+    }
+
+    @Test
+    public void cacheIgnoresLayoutUnderAnotherKey() throws IOException {
+        new GattCache.FileStore(mDirectory).write(ADDRESS, layout(7).toBytes());
+        GattCache.setStore(new GattCache.FileStore(mDirectory));
+
+        GattLayout cached = GattCache.get(ADDRESS, 7);
+        assertNotNull(cached);
+        assertEquals(1, cached.find(SERVICE_A, LED));
+        assertSame(cached, GattCache.peek(ADDRESS, 7));
+
+        assertNull(GattCache.get(ADDRESS, 8));
+        assertNull(GattCache.peek(ADDRESS, 8));
+        assertNull(GattCache.get(ADDRESS + 1, 7));
+    }
+
+    @Test
+    public void peekDoesNotReadStore() throws IOException {
+        new GattCache.FileStore(mDirectory).write(ADDRESS, layout(7).toBytes());
+        GattCache.setStore(new GattCache.FileStore(mDirectory));
+        assertNull(GattCache.peek(ADDRESS, 7));
+    }
+}
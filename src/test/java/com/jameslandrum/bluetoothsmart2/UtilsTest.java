@@ -0,0 +1,76 @@
+package com.jameslandrum.bluetoothsmart2;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks short UUID expansion onto the Bluetooth and custom base UUIDs, and the UUID and MAC address caches.
+ */
+public class UtilsTest {
+    private static final UUID NORDIC_BASE = UUID.fromString("00001523-1212-efde-1523-785feabcd123");
+
+    @Test
+    public void expandsShortUuidsOntoBluetoothBase() {
+        assertEquals(UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb"), Utils.uuidFromString("180F"));
+        assertEquals(UUID.fromString("0000fe9a-0000-1000-8000-00805f9b34fb"), Utils.uuidFromString("fe9a"));
+        assertEquals(UUID.fromString("12345678-0000-1000-8000-00805f9b34fb"), Utils.uuidFromString("12345678"));
+    }
+
+    @Test
+    public void expandsShortUuidsOntoCustomBase() {
+        assertEquals(UUID.fromString("00001525-1212-efde-1523-785feabcd123"),
+                Utils.uuidFromString("1525", NORDIC_BASE));
+        assertEquals(UUID.fromString("abcd1525-1212-efde-1523-785feabcd123"),
+                Utils.uuidFromString("abcd1525", NORDIC_BASE));
+    }
+
+    @Test
+    public void parsesFullUuids() {
+        String full = "6e400001-b5a3-f393-e0a9-e50e24dcca9e";
+        assertEquals(UUID.fromString(full), Utils.uuidFromString(full));
+        assertEquals(UUID.fromString(full), Utils.uuidFromString(full.toUpperCase()));
+        assertEquals(UUID.fromString(full), Utils.uuidFromString(full, NORDIC_BASE));
+    }
+
+    @Test
+    public void sameReferenceOnDifferentBasesDiffers() {
+        UUID standard = Utils.uuidFromString("1524");
+        UUID custom = Utils.uuidFromString("1524", NORDIC_BASE);
+        assertNotEquals(standard, custom);
+        assertEquals(UUID.fromString("00001524-0000-1000-8000-00805f9b34fb"), standard);
+    }
+
+    @Test
+    public void resolvedUuidsAreShared() {
+        assertSame(Utils.uuidFromString("2a19"), Utils.uuidFromString("2a19"));
+        UUID uuid = Utils.uuidFromString("2a37");
+        assertSame(uuid, Utils.intern(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+    }
+
+    @Test
+    public void expandMatchesParsing() {
+        assertEquals(Utils.uuidFromString("2a19").getMostSignificantBits(),
+                Utils.expand16(0x2A19, Utils.BASE_UUID_MSB));
+        long nordicMsb = NORDIC_BASE.getMostSignificantBits();
+        assertEquals(nordicMsb, Utils.expand16(0x1523, nordicMsb));
+        assertEquals(Utils.uuidFromString("0001f00d").getMostSignificantBits(),
+                Utils.expand32(0x0001F00DL, Utils.BASE_UUID_MSB));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidHex() {
+        Utils.uuidFromString("18G0");
+    }
+
+    @Test
+    public void packsMacAddresses() {
+        assertEquals(0xA1B2C3D4E5F6L, Utils.macToLong("A1:B2:C3:D4:E5:F6"));
+        assertEquals(0xA1B2C3D4E5F6L, Utils.macToLong("a1:b2:c3:d4:e5:f6"));
+        assertEquals("A1:B2:C3:D4:E5:F6", Utils.macToString(0xA1B2C3D4E5F6L));
+        assertEquals(-1, Utils.macToLong("A1-B2-C3-D4-E5-F6"));
+        assertEquals(-1, Utils.macToLong(null));
+    }
+}
@@ -0,0 +1,85 @@
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that service UUIDs of every width expand onto the Bluetooth base UUID, and that malformed records stop
+ * the reader instead of reading past the end.
+ */
+public class AdvertisementReaderTest {
+    private static final byte[] RECORD = {
+            0x02, 0x01, 0x06,                                       // Flags
+            0x05, 0x03, 0x0F, 0x18, 0x0A, 0x18,                     // 16 bit: 180F, 180A
+            0x05, 0x05, 0x78, 0x56, 0x34, 0x12,                     // 32 bit: 12345678
+            0x11, 0x07,                                             // 128 bit, little endian
+            0x23, (byte) 0xD1, (byte) 0xBC, (byte) 0xEA, 0x5F, 0x78, 0x23, 0x15,
+            (byte) 0xDE, (byte) 0xEF, 0x12, 0x12, 0x23, 0x15, 0x00, 0x00,
+            0x05, 0x16, 0x0F, 0x18, 0x64, 0x01,                     // Service data for 180F
+            0x05, 0x09, 'L', 'a', 'm', 'p',
+            0x02, 0x0A, (byte) 0xF4,                                // Tx power -12 dBm
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,              // Apple manufacturer data
+    };
+
+    private static UUID uuid(AdvertisementReader reader, int index) {
+        return new UUID(reader.getServiceUuidMsb(index), reader.getServiceUuidLsb(index));
+    }
+
+    @Test
+    public void expandsServiceUuidsOfEveryWidth() {
+        AdvertisementReader reader = new AdvertisementReader().reset(RECORD);
+        assertEquals(4, reader.getServiceUuidCount());
+        assertEquals(UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb"), uuid(reader, 0));
+        assertEquals(UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb"), uuid(reader, 1));
+        assertEquals(UUID.fromString("12345678-0000-1000-8000-00805f9b34fb"), uuid(reader, 2));
+        assertEquals(UUID.fromString("00001523-1212-efde-1523-785feabcd123"), uuid(reader, 3));
+        assertTrue(reader.hasServiceUuid(UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb")));
+        assertFalse(reader.hasServiceUuid(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test
+    public void indexesOtherStructures() {
+        AdvertisementReader reader = new AdvertisementReader().reset(RECORD);
+        assertEquals("Lamp", reader.getLocalName());
+        assertTrue(reader.localNameEquals("Lamp"));
+        assertEquals("Lamp".hashCode(), reader.localNameHash());
+        assertEquals(-12, reader.getTxPower());
+        assertEquals(0x004C, reader.getManufacturerId());
+        assertEquals(2, reader.getManufacturerDataLength());
+        assertEquals(0x02, RECORD[reader.getManufacturerDataOffset()]);
+
+        UUID battery = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+        int data = reader.findServiceData(battery.getMostSignificantBits(), battery.getLeastSignificantBits());
+        assertEquals(0, data);
+        assertEquals(2, reader.getServiceDataLength(data));
+        assertEquals(100, RECORD[reader.getServiceDataOffset(data)]);
+    }
+
+    @Test
+    public void stopsAtTruncatedStructure() {
+        byte[] record = {0x03, 0x03, 0x0F, 0x18, 0x09, 0x09, 'L', 'a'};
+        AdvertisementReader reader = new AdvertisementReader().reset(record);
+        assertEquals(1, reader.getServiceUuidCount());
+        assertFalse(reader.hasLocalName());
+    }
+
+    @Test
+    public void honoursRecordLength() {
+        AdvertisementReader reader = new AdvertisementReader().reset(RECORD, 9);
+        assertEquals(2, reader.getServiceUuidCount());
+        assertEquals(AdvertisementReader.NO_MANUFACTURER, reader.getManufacturerId());
+        assertEquals(AdvertisementReader.NO_TX_POWER, reader.getTxPower());
+    }
+
+    @Test
+    public void resetClearsPreviousRecord() {
+        AdvertisementReader reader = new AdvertisementReader().reset(RECORD);
+        reader.reset(new byte[] {0x02, 0x01, 0x06});
+        assertEquals(0, reader.getServiceUuidCount());
+        assertFalse(reader.hasLocalName());
+        assertEquals(-1, reader.findServiceData(0, 0));
+    }
+}
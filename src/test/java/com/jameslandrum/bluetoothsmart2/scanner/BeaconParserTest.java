@@ -0,0 +1,126 @@
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes iBeacon and Eddystone frames and checks that each field is read from the right big endian offset.
+ */
+public class BeaconParserTest {
+    private static final long MAC = 0x112233445566L;
+    private static final String PROXIMITY = "f7826da6-4fa2-4e98-8024-bc5b71e0893e";
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = (byte) values[i];
+        return result;
+    }
+
+    private static BeaconFrame parse(byte[] record) {
+        BeaconFrame frame = new BeaconFrame();
+        boolean parsed = BeaconParser.parse(new AdvertisementReader().reset(record), MAC, -70, frame);
+        assertEquals(parsed, frame.getType() != BeaconFrame.TYPE_NONE);
+        return frame;
+    }
+
+    // Flags, the Eddystone service UUID, then service data holding the given frame.
+    private static byte[] eddystone(int... frame) {
+        byte[] record = new byte[11 + frame.length];
+        System.arraycopy(bytes(0x02, 0x01, 0x06, 0x03, 0x03, 0xAA, 0xFE, 3 + frame.length, 0x16, 0xAA, 0xFE), 0,
+                record, 0, 11);
+        System.arraycopy(bytes(frame), 0, record, 11, frame.length);
+        return record;
+    }
+
+    @Test
+    public void decodesIBeacon() {
+        BeaconFrame frame = parse(bytes(
+                0x02, 0x01, 0x06,
+                0x1A, 0xFF, 0x4C, 0x00, 0x02, 0x15,
+                0xF7, 0x82, 0x6D, 0xA6, 0x4F, 0xA2, 0x4E, 0x98, 0x80, 0x24, 0xBC, 0x5B, 0x71, 0xE0, 0x89, 0x3E,
+                0x12, 0x34,     // Major
+                0xAB, 0xCD,     // Minor
+                0xC5));         // -59 dBm at one meter
+        assertEquals(BeaconFrame.TYPE_IBEACON, frame.getType());
+        assertEquals(UUID.fromString(PROXIMITY), frame.getUuid());
+        assertEquals(0x1234, frame.getMajor());
+        assertEquals(0xABCD, frame.getMinor());
+        assertEquals(-59, frame.getTxPower());
+        assertEquals(-59, frame.getReferencePower());
+        assertEquals(MAC, frame.getAddress());
+        assertEquals(-70, frame.getRssi());
+    }
+
+    @Test
+    public void rejectsShortIBeacon() {
+        BeaconFrame frame = parse(bytes(0x06, 0xFF, 0x4C, 0x00, 0x02, 0x15, 0xF7));
+        assertEquals(BeaconFrame.TYPE_NONE, frame.getType());
+    }
+
+    @Test
+    public void rejectsOtherAppleFrames() {
+        BeaconFrame frame = parse(bytes(0x06, 0xFF, 0x4C, 0x00, 0x10, 0x05, 0x01));
+        assertEquals(BeaconFrame.TYPE_NONE, frame.getType());
+    }
+
+    @Test
+    public void decodesEddystoneUid() {
+        BeaconFrame frame = parse(eddystone(
+                0x00, 0xEE,
+                0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A,    // Namespace
+                0xA1, 0xB2, 0xC3, 0xD4, 0xE5, 0xF6,                            // Instance
+                0x00, 0x00));
+        assertEquals(BeaconFrame.TYPE_EDDYSTONE_UID, frame.getType());
+        assertEquals(-18, frame.getTxPower());
+        assertEquals(-18 - 41, frame.getReferencePower());
+        assertEquals(0x0102030405060708L, frame.getNamespaceHigh());
+        assertEquals(0x090A, frame.getNamespaceLow());
+        assertEquals(0xA1B2C3D4E5F6L, frame.getInstance());
+    }
+
+    @Test
+    public void decodesEddystoneUrl() {
+        BeaconFrame frame = parse(eddystone(0x10, 0xEB, 0x03, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x00));
+        assertEquals(BeaconFrame.TYPE_EDDYSTONE_URL, frame.getType());
+        assertEquals(-21, frame.getTxPower());
+        assertEquals("https://example.com/", frame.getUrl());
+    }
+
+    @Test
+    public void decodesEddystoneTlm() {
+        BeaconFrame frame = parse(eddystone(
+                0x20, 0x00,
+                0x0B, 0xB8,                 // 3000 mV
+                0x18, 0x80,                 // 24.5 C
+                0x00, 0x01, 0x00, 0x00,     // 65536 advertisements
+                0x00, 0x00, 0x03, 0xE8));   // 1000 tenths of a second
+        assertEquals(BeaconFrame.TYPE_EDDYSTONE_TLM, frame.getType());
+        assertEquals(0, frame.getTlmVersion());
+        assertEquals(3000, frame.getBatteryVoltage());
+        assertEquals(24.5f, frame.getTemperature(), 0);
+        assertEquals(65536, frame.getAdvertisementCount());
+        assertEquals(100000, frame.getUptime());
+    }
+
+    @Test
+    public void unsupportedTemperatureIsNaN() {
+        BeaconFrame frame = parse(eddystone(
+                0x20, 0x00, 0x0B, 0xB8, 0x80, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x01));
+        assertTrue(Float.isNaN(frame.getTemperature()));
+    }
+
+    @Test
+    public void rejectsTruncatedEddystoneUid() {
+        BeaconFrame frame = parse(eddystone(0x00, 0xEE, 0x01, 0x02, 0x03));
+        assertEquals(BeaconFrame.TYPE_NONE, frame.getType());
+    }
+
+    @Test
+    public void ignoresOrdinaryAdvertisements() {
+        BeaconFrame frame = parse(bytes(0x02, 0x01, 0x06, 0x03, 0x03, 0x0F, 0x18, 0x05, 0xFF, 0x59, 0x00, 0x01, 0x02));
+        assertEquals(BeaconFrame.TYPE_NONE, frame.getType());
+    }
+}
@@ -0,0 +1,102 @@
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that entries expire on the tick their deadline falls in, including after cascading down from the
+ * coarser levels of the wheel.
+ */
+public class ExpiryWheelTest {
+    private static final long SECOND = ExpiryWheel.TICK;
+
+    private static long[] expired(ExpiryWheel wheel, long now) {
+        int count = wheel.advance(now);
+        long[] macs = new long[count];
+        for (int i = 0; i < count; i++) macs[i] = wheel.getExpired(i);
+        Arrays.sort(macs);
+        return macs;
+    }
+
+    @Test
+    public void expiresWithinFirstLevel() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        wheel.touch(1, 0, 10 * SECOND, false);
+        assertEquals(0, expired(wheel, 10 * SECOND - 1).length);
+        assertArrayEquals(new long[] {1}, expired(wheel, 10 * SECOND));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cascadesFromSecondLevel() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        wheel.touch(1, 0, 100 * SECOND, false);
+        wheel.touch(2, 0, 130 * SECOND, false);
+        assertEquals(0, expired(wheel, 100 * SECOND - 1).length);
+        assertArrayEquals(new long[] {1}, expired(wheel, 100 * SECOND));
+        assertEquals(0, expired(wheel, 130 * SECOND - 1).length);
+        assertArrayEquals(new long[] {2}, expired(wheel, 130 * SECOND));
+    }
+
+    @Test
+    public void cascadesFromThirdLevel() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        long timeout = 5000 * SECOND;
+        wheel.touch(1, 0, timeout, false);
+        assertEquals(0, expired(wheel, 4096 * SECOND).length);
+        assertEquals(0, expired(wheel, timeout - 1).length);
+        assertArrayEquals(new long[] {1}, expired(wheel, timeout));
+    }
+
+    @Test
+    public void touchingDefersExpiry() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        wheel.touch(1, 0, 100 * SECOND, false);
+        wheel.touch(1, 80 * SECOND, 100 * SECOND, false);
+        assertEquals(0, expired(wheel, 179 * SECOND).length);
+        assertArrayEquals(new long[] {1}, expired(wheel, 180 * SECOND));
+    }
+
+    @Test
+    public void shorterTimeoutExpiresEarlier() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        wheel.touch(1, 0, 1000 * SECOND, false);
+        wheel.touch(1, 0, 5 * SECOND, false);
+        assertArrayEquals(new long[] {1}, expired(wheel, 5 * SECOND));
+    }
+
+    @Test
+    public void onlyIfAbsentLeavesTrackedEntry() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        wheel.touch(1, 0, 10 * SECOND, false);
+        wheel.touch(1, 5 * SECOND, 10 * SECOND, true);
+        assertArrayEquals(new long[] {1}, expired(wheel, 10 * SECOND));
+    }
+
+    @Test
+    public void removedEntryNeverExpires() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        wheel.touch(1, 0, 100 * SECOND, false);
+        wheel.touch(2, 0, 100 * SECOND, false);
+        wheel.remove(1);
+        assertArrayEquals(new long[] {2}, expired(wheel, 200 * SECOND));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void expiresManyEntriesAcrossLevels() {
+        ExpiryWheel wheel = new ExpiryWheel();
+        for (int i = 0; i < 500; i++) wheel.touch(i, 0, (i * 37 % 3000 + 1) * SECOND, false);
+        int total = 0;
+        for (long second = 1; second <= 3000; second++) {
+            long[] macs = expired(wheel, second * SECOND);
+            for (long mac : macs) assertEquals(second, mac * 37 % 3000 + 1);
+            total += macs.length;
+        }
+        assertEquals(500, total);
+        assertEquals(0, wheel.size());
+    }
+}
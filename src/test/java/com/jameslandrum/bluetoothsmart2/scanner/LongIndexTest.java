@@ -0,0 +1,97 @@
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that backward shift deletion keeps every remaining key reachable, including across the end of the table.
+ */
+public class LongIndexTest {
+    private static final int MASK = 15;     // LongIndex(8) holds 16 slots
+
+    // Finds keys whose home slot is the given slot, so tests can build clusters on purpose.
+    private static long[] keysHomedAt(int slot, int count, long from) {
+        long[] keys = new long[count];
+        int found = 0;
+        for (long key = from; found < count; key++) {
+            if ((LongIndex.hash(key) & MASK) == slot) keys[found++] = key;
+        }
+        return keys;
+    }
+
+    @Test
+    public void removeShiftsCollidingKeysBack() {
+        LongIndex index = new LongIndex(8);
+        long[] keys = keysHomedAt(3, 4, 0);
+        for (int i = 0; i < keys.length; i++) index.put(keys[i], i);
+
+        assertEquals(0, index.remove(keys[0]));
+        assertEquals(3, index.size());
+        assertEquals(LongIndex.MISSING, index.get(keys[0]));
+        for (int i = 1; i < keys.length; i++) assertEquals(i, index.get(keys[i]));
+
+        assertEquals(2, index.remove(keys[2]));
+        assertEquals(1, index.get(keys[1]));
+        assertEquals(3, index.get(keys[3]));
+    }
+
+    @Test
+    public void removeShiftsAcrossTableEnd() {
+        LongIndex index = new LongIndex(8);
+        long[] wrapped = keysHomedAt(MASK, 3, 0);      // Fill the last slot, then slots 0 and 1
+        long[] local = keysHomedAt(0, 1, 0);           // Home 0, pushed to slot 2
+        for (int i = 0; i < wrapped.length; i++) index.put(wrapped[i], i);
+        index.put(local[0], 10);
+
+        assertEquals(0, index.remove(wrapped[0]));
+        assertEquals(1, index.get(wrapped[1]));
+        assertEquals(2, index.get(wrapped[2]));
+        assertEquals(10, index.get(local[0]));
+
+        assertEquals(1, index.remove(wrapped[1]));
+        assertEquals(2, index.get(wrapped[2]));
+        assertEquals(10, index.get(local[0]));
+    }
+
+    @Test
+    public void removeLeavesKeysAtTheirHomeSlotInPlace() {
+        LongIndex index = new LongIndex(8);
+        long[] first = keysHomedAt(5, 2, 0);    // Slots 5 and 6
+        long[] second = keysHomedAt(6, 1, 0);   // Home 6, pushed to slot 7
+        index.put(first[0], 0);
+        index.put(first[1], 1);
+        index.put(second[0], 2);
+
+        assertEquals(0, index.remove(first[0]));
+        assertEquals(1, index.get(first[1]));
+        assertEquals(2, index.get(second[0]));
+        assertEquals(LongIndex.MISSING, index.remove(first[0]));
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomChurn() {
+        LongIndex index = new LongIndex(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                Integer value = expected.remove(key);
+                assertEquals(value == null ? LongIndex.MISSING : value, index.remove(key));
+            } else {
+                index.put(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.size(), index.size());
+        }
+        for (long key = 0; key < 200; key++) {
+            Integer value = expected.get(key);
+            assertEquals(value == null ? LongIndex.MISSING : value, index.get(key));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.jameslandrum.bluetoothsmart2.scanner;
+
+import com.jameslandrum.bluetoothsmart2.SmartDevice;
+import com.jameslandrum.bluetoothsmart2.actionqueue.Identifier;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that adding an identifier only re-evaluates rejected devices that could match it.
+ */
+public class NegativeCacheTest {
+    private static final long MAC = 0x0A0B0C0D0E0FL;
+    private static final long TTL = 60000;
+
+    // Advertises the 16 bit service 0x180F and manufacturer 0x004C, with no local name.
+    private static final byte[] BATTERY_SERVICE = {
+            0x03, 0x03, 0x0F, 0x18,
+            0x05, (byte) 0xFF, 0x4C, 0x00, 0x01, 0x02,
+    };
+
+    // Advertises the local name "Lamp" and no services.
+    private static final byte[] NAMED = {
+            0x05, 0x09, 'L', 'a', 'm', 'p',
+    };
+
+    private static long signature(byte[] data, String deviceName) {
+        return NegativeCache.signature(new AdvertisementReader().reset(data), deviceName);
+    }
+
+    private static Identifier.Builder identifier() {
+        return new Identifier.Builder(SmartDevice.class);
+    }
+
+    @Test
+    public void unrelatedIdentifierKeepsRejection() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        cache.identifierAdded(identifier().uuid("1523").build());
+        assertTrue(cache.contains(MAC, 1));
+    }
+
+    @Test
+    public void matchingIdentifierDropsRejection() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        cache.identifierAdded(identifier().uuid("180F").build());
+        assertFalse(cache.contains(MAC, 1));
+    }
+
+    @Test
+    public void identifierMustBeSatisfiedInFull() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        cache.identifierAdded(identifier().uuid("180F").manufacturerId(0x0059).build());
+        assertTrue(cache.contains(MAC, 1));
+        cache.identifierAdded(identifier().uuid("180F").manufacturerId(0x004C).build());
+        assertFalse(cache.contains(MAC, 2));
+    }
+
+    @Test
+    public void rejectionAfterIdentifierIsKept() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.identifierAdded(identifier().uuid("180F").build());
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        assertTrue(cache.contains(MAC, 1));
+    }
+
+    @Test
+    public void nameIdentifierMatchesLocalOrDeviceName() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.add(MAC, signature(NAMED, null), 0);
+        cache.add(MAC + 1, signature(NAMED, "Heater"), 0);
+        cache.identifierAdded(identifier().name("Heater").build());
+        assertTrue(cache.contains(MAC, 1));
+        assertFalse(cache.contains(MAC + 1, 1));
+        cache.identifierAdded(identifier().name("Lamp").build());
+        assertFalse(cache.contains(MAC, 2));
+    }
+
+    @Test
+    public void nameIdentifierReevaluatesDevicesWithoutLocalName() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        cache.identifierAdded(identifier().name("Sensor").manufacturerId(0x004C).build());
+        assertFalse(cache.contains(MAC, 1));
+    }
+
+    @Test
+    public void generationsWrapByClearing() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        for (int i = 0; i < 64; i++) cache.identifierAdded(identifier().uuid("1523").build());
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        assertTrue(cache.contains(MAC, 1));
+        cache.identifierAdded(identifier().uuid("1523").build());
+        assertEquals(1, cache.currentGeneration());
+        assertFalse(cache.contains(MAC, 2));
+    }
+
+    @Test
+    public void malformedAddressIsNeverRemembered() {
+        NegativeCache cache = NegativeCache.lru(1, TTL);
+        cache.add(-1, signature(BATTERY_SERVICE, null), 0);
+        assertFalse(cache.contains(-1, 1));
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        assertTrue(cache.contains(MAC, 1));
+
+        NegativeCache bloom = NegativeCache.bloom(16, TTL);
+        bloom.add(-1, signature(BATTERY_SERVICE, null), 0);
+        assertFalse(bloom.contains(-1, 1));
+    }
+
+    @Test
+    public void rejectionExpires() {
+        NegativeCache cache = NegativeCache.lru(16, TTL);
+        cache.add(MAC, signature(BATTERY_SERVICE, null), 0);
+        assertTrue(cache.contains(MAC, TTL - 1));
+        assertFalse(cache.contains(MAC, TTL));
+    }
+}